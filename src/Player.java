@@ -1,11 +1,15 @@
 import org.hackyourlife.gcn.dsp.*;
+import org.hackyourlife.gcn.dsp.bench.Throughput;
+import org.hackyourlife.gcn.dsp.input.InputData;
 import org.hackyourlife.gcn.dsp.player.BrstmPlayer;
 
 import java.io.File;
 import java.io.RandomAccessFile;
+import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.List;
 import java.util.Scanner;
+import java.util.concurrent.Callable;
 
 /**
  * Created by Nick on 14 nov. 2019.
@@ -13,14 +17,24 @@ import java.util.Scanner;
  */
 public class Player {
 
+    /** Most files of a DSP split into one file per channel */
+    private static final int MAX_CHANNEL_FILES = 6;
+    /** Marks the channel number of a split DSP, as in {@code name_ch0.dsp} */
+    private static final String CHANNEL_MARKER = "_ch";
+
     private static BrstmPlayer brstmPlayer;
 
     public static void main(String[] args) {
         int track = -1;
         if(args.length < 1) {
-            System.err.println("Usage: player FILE [track]");
+            System.err.println("Usage: player FILE|- [track]");
+            System.err.println("       player --bench [-t seconds] [-w warmup seconds] [-n copies] FILE...");
             System.exit(1);
         }
+        if(args[0].equals("--bench")) {
+            bench(Arrays.copyOfRange(args, 1, args.length));
+            return;
+        }
         if(args.length > 1) {
             try {
                 track = Integer.parseInt(args[1]);
@@ -30,66 +44,191 @@ public class Player {
             }
         }
 
-        // thread for pausing/resuming or changing volume
-        thread().start();
+        // thread for pausing/resuming or changing volume; standard input is the audio when playing "-"
+        if(!args[0].equals("-"))
+            thread().start();
+
+        try {
+            Stream stream = open(args[0].replace("%20", " "));
+
+            System.out.printf("%d Channels, %d Hz\n", stream.getChannels(), stream.getSampleRate());
+
+            brstmPlayer = new BrstmPlayer(stream);
+            brstmPlayer.prepare();
+            brstmPlayer.start();
+            System.out.printf("Prepared in %.1f ms, started in %.1f ms\n", brstmPlayer.getPrepareNanos() / 1e6, brstmPlayer.getStartLatencyNanos() / 1e6);
+        } catch (Exception e) {
+            e.printStackTrace();
+        }
+    }
 
+    /**
+     * Decodes the files as fast as possible for a while and prints the throughput, see {@link Throughput}
+     */
+    private static void bench(String[] args) {
+        double seconds = 10;
+        double warmup = 2;
+        int copies = 1;
+        List<Callable<Stream>> openers = new ArrayList<>();
         try {
-            String filename = args[0].replace("%20", " ");
-            String filenameLeft = null;
-            String filenameRight = null;
-            int lext = filename.lastIndexOf('.');
-            if(lext > 1) {
-                char[] data = filename.toCharArray();
-                char c = data[lext - 1];
-                if(c == 'L') {
-                    data[lext - 1] = 'R';
-                    filenameLeft = filename;
-                    filenameRight = new String(data);
-                } else if(c == 'R') {
-                    data[lext - 1] = 'L';
-                    filenameLeft = new String(data);
-                    filenameRight = filename;
+            for(int i = 0; i < args.length; i++) {
+                switch(args[i]) {
+                    case "-t":
+                        seconds = Double.parseDouble(args[++i]);
+                        break;
+                    case "-w":
+                        warmup = Double.parseDouble(args[++i]);
+                        break;
+                    case "-n":
+                        copies = Integer.parseInt(args[++i]);
+                        break;
+                    case "-":
+                        System.err.println("Standard input can not be benchmarked, it can only be read once");
+                        System.exit(1);
+                        return;
+                    default:
+                        String filename = args[i].replace("%20", " ");
+                        openers.add(() -> open(filename));
                 }
             }
-            Stream stream;
-            RandomAccessFile file = new RandomAccessFile(filename, "r");
+        } catch(NumberFormatException | ArrayIndexOutOfBoundsException e) {
+            System.err.println("Invalid benchmark arguments: " + String.join(" ", args));
+            System.exit(1);
+        }
+        if(openers.isEmpty()) {
+            System.err.println("No files to benchmark");
+            System.exit(1);
+        }
+
+        try {
+            Throughput throughput = new Throughput(openers);
+            throughput.setSeconds(seconds);
+            throughput.setWarmupSeconds(warmup);
+            throughput.setCopies(copies);
+            throughput.run().print();
+        } catch (Exception e) {
+            e.printStackTrace();
+            System.exit(1);
+        }
+    }
 
+    /**
+     * Opens a file as BRSTM, BFSTM, RS03 or DSP, trying them in this order. DSP files split into
+     * one file per channel are opened together.
+     */
+    private static Stream open(String filename) throws Exception {
+        if(filename.equals("-"))
+            return openForward(InputData.getForwardInputData(System.in));
+
+        String[] channelFiles = findChannelFiles(filename);
+        Stream stream;
+        RandomAccessFile file = new RandomAccessFile(filename, "r");
+
+        try {
+            stream = new BRSTM(file);
+        } catch(FileFormatException e) {
             try {
-                stream = new BRSTM(file);
-            } catch(FileFormatException e) {
+                stream = new BFSTM(file);
+            } catch(FileFormatException ex) {
                 try {
-                    stream = new BFSTM(file);
-                } catch(FileFormatException ex) {
-                    try {
-                        stream = new RS03(file);
-                    } catch(FileFormatException exc) {
-                        if(filenameLeft != null
-                                && new File(filenameLeft).exists()
-                                && new File(filenameRight).exists()) {
-                            file.close();
-                            RandomAccessFile left = new RandomAccessFile(filenameLeft, "r");
-                            RandomAccessFile right = new RandomAccessFile(filenameRight, "r");
-                            try {
-                                stream = new DSP(left, right);
-                            } catch(FileFormatException exce) {
-                                left.close();
-                                right.close();
-                                file = new RandomAccessFile(filename, "r");
-                                stream = new DSP(file);
-                            }
-                        } else
+                    stream = new RS03(file);
+                } catch(FileFormatException exc) {
+                    if(channelFiles != null) {
+                        file.close();
+                        RandomAccessFile[] channels = new RandomAccessFile[channelFiles.length];
+                        for(int i = 0; i < channels.length; i++)
+                            channels[i] = new RandomAccessFile(channelFiles[i], "r");
+                        try {
+                            stream = new DSP(channels);
+                        } catch(FileFormatException exce) {
+                            for(RandomAccessFile channel : channels)
+                                channel.close();
+                            file = new RandomAccessFile(filename, "r");
                             stream = new DSP(file);
-                    }
+                        }
+                    } else
+                        stream = new DSP(file);
                 }
             }
+        }
 
-            System.out.printf("%d Channels, %d Hz\n", stream.getChannels(), stream.getSampleRate());
+        return stream;
+    }
 
-            brstmPlayer = new BrstmPlayer(stream);
-            brstmPlayer.start();
-        } catch (Exception e) {
-            e.printStackTrace();
+    /**
+     * Opens a stream that can only be read front to back, e.g. standard input. It is played once,
+     * loops are ignored.
+     */
+    private static Stream openForward(InputData input) throws Exception {
+        switch(StreamInfo.probe(input).getFormat()) {
+            case "BRSTM":
+                return new BRSTM(input);
+            case "BFSTM":
+                return new BFSTM(input);
+            case "RS03":
+                return new RS03(input);
+            default:
+                return new DSP(input);
+        }
+    }
+
+    /**
+     * Finds the other files of a DSP split into one file per channel, either named
+     * {@code nameL.dsp}/{@code nameR.dsp} or {@code name_ch0.dsp}, {@code name_ch1.dsp}, ...
+     * (numbering may start at 0 or 1) with at most {@link #MAX_CHANNEL_FILES} files. The files
+     * must have the same size, so unrelated files are never opened together.
+     *
+     * @return The files in channel order, or {@code null} if there is only one file
+     */
+    private static String[] findChannelFiles(String filename) {
+        int lext = filename.lastIndexOf('.');
+        if(lext <= 1)
+            return null;
+        String extension = filename.substring(lext);
+        char c = filename.charAt(lext - 1);
+        if(c == 'L' || c == 'R') {
+            String name = filename.substring(0, lext - 1);
+            String[] files = { name + 'L' + extension, name + 'R' + extension };
+            return sameSize(files) ? files : null;
+        }
+
+        int marker = filename.lastIndexOf(CHANNEL_MARKER, lext);
+        if(marker < 0 || marker + CHANNEL_MARKER.length() == lext)
+            return null;
+        for(int i = marker + CHANNEL_MARKER.length(); i < lext; i++) {
+            if(!Character.isDigit(filename.charAt(i)))
+                return null;
+        }
+        String name = filename.substring(0, marker + CHANNEL_MARKER.length());
+        for(int first = 0; first <= 1; first++) {
+            List<String> files = new ArrayList<>();
+            for(int i = first; i <= first + MAX_CHANNEL_FILES; i++) {
+                String channel = name + i + extension;
+                if(!new File(channel).exists())
+                    break;
+                files.add(channel);
+            }
+            // more files than a group has channels, not a split DSP
+            if(files.size() > MAX_CHANNEL_FILES)
+                return null;
+            String[] group = files.toArray(new String[0]);
+            if(group.length > 1 && files.contains(filename) && sameSize(group))
+                return group;
+        }
+        return null;
+    }
+
+    /**
+     * @return If all files exist and have the same size, as the channels of one DSP do
+     */
+    private static boolean sameSize(String[] files) {
+        long size = new File(files[0]).length();
+        for(String file : files) {
+            File f = new File(file);
+            if(!f.isFile() || f.length() != size)
+                return false;
         }
+        return true;
     }
 
     private static Thread thread() {
@@ -80,4 +80,47 @@ public class ADPCMDecoder {
 
 		return(samples);
 	}
+
+	/* decodes samples_to_do samples starting at first_sample of the frames at offset,
+	 * writing every sample to out[out_offset + n * out_stride] */
+	public void decode_ngc_dsp(byte[] mem, int offset, int first_sample, int samples_to_do, short[] out, int out_offset, int out_stride) {
+		int hist1 = adpcm_history1;
+		int hist2 = adpcm_history2;
+		int frame = offset + (first_sample / 14) * 8;
+		int i = first_sample % 14;
+		int o = out_offset;
+
+		while(samples_to_do > 0) {
+			int header = mem[frame];
+			int scale = 1 << (header & 0xf);
+			int coef_index = (header >> 4) & 0xf;
+			int coef1 = adpcm_coef[coef_index*2];
+			int coef2 = adpcm_coef[coef_index*2 + 1];
+			int end = i + samples_to_do;
+			if(end > 14)
+				end = 14;
+			samples_to_do -= end - i;
+
+			for(; i < end; i++, o += out_stride) {
+				int sample_byte = mem[frame + 1 + (i >> 1)];
+				int nibble = ((i & 1) != 0) ?
+					(sample_byte << 28) >> 28 :
+					(sample_byte << 24) >> 28;
+				int sample = ((nibble * scale) << 11) + 1024 + (coef1 * hist1 + coef2 * hist2) >> 11;
+				if(sample > 32767)
+					sample = 32767;
+				else if(sample < -32768)
+					sample = -32768;
+				out[o] = (short) sample;
+				hist2 = hist1;
+				hist1 = sample;
+			}
+
+			i = 0;
+			frame += 8;
+		}
+
+		adpcm_history1 = hist1;
+		adpcm_history2 = hist2;
+	}
 }
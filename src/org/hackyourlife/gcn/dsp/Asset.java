@@ -0,0 +1,246 @@
+package org.hackyourlife.gcn.dsp;
+
+import org.hackyourlife.gcn.dsp.input.InputData;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+
+/* a parsed BRSTM, BFSTM or RS03 file: the header is read once and kept
+ * immutable together with the input, which is only used for positional
+ * reads. Every playback is a Cursor with its own position and decoder
+ * history, so the same asset can be played any number of times at once from
+ * any threads without parsing it again or opening another file handle. */
+public final class Asset {
+	private final String	format;
+	private final InputData	input;
+	private final long	sample_count;
+	private final long	sample_rate;
+	private final int	loop_flag;
+	private final long	loop_start_sample;
+	private final long	loop_end_sample;
+	private final int	channel_count;
+	private final int	coef[][];
+	private final long	start_offset;
+	private final long	interleave_block_size;
+	private final long	interleave_smallblock_size;
+	private final BlockIndex index;
+	private final TrackInfo	tracks[];
+	private final short	block_history[];
+
+	private Asset(String format, InterleavedStream stream) {
+		this.format = format;
+		this.input = stream.inputData;
+		this.sample_count = stream.sample_count;
+		this.sample_rate = stream.sample_rate;
+		this.loop_flag = stream.loop_flag;
+		this.loop_start_sample = stream.loop_start_sample;
+		this.loop_end_sample = stream.loop_end_sample;
+		this.channel_count = stream.channel_count;
+		this.coef = new int[channel_count][];
+		for(int ch = 0; ch < channel_count; ch++)
+			this.coef[ch] = stream.coef[ch].clone();
+		this.start_offset = stream.start_offset;
+		this.interleave_block_size = stream.interleave_block_size;
+		this.interleave_smallblock_size = stream.interleave_smallblock_size;
+		this.index = stream.index;
+		this.tracks = stream.tracks;
+		this.block_history = stream.block_history;
+	}
+
+	/* parses the header; the asset owns the input from now on and closes it
+	 * if the header can not be parsed. Inputs that are shared this way must
+	 * support concurrent positional reads anywhere in the file, which all
+	 * inputs of InputData do except forward-only ones; those are rejected
+	 * and left open. */
+	public static Asset load(InputData in) throws IOException, FileFormatException {
+		if(in.isForwardOnly())
+			throw new IllegalArgumentException("an asset can not be loaded from a forward-only input");
+		try {
+			return(parse(in));
+		} catch(IOException | FileFormatException | RuntimeException e) {
+			try {
+				in.close();
+			} catch(IOException x) {
+				e.addSuppressed(x);
+			}
+			throw e;
+		}
+	}
+
+	private static Asset parse(InputData in) throws IOException, FileFormatException {
+		StreamInfo info = StreamInfo.probe(in);
+		InterleavedStream stream;
+		switch(info.getFormat()) {
+			case "BRSTM":
+				stream = new BRSTM(in);
+				break;
+			case "BFSTM":
+				stream = new BFSTM(in);
+				break;
+			case "RS03":
+				stream = new RS03(in);
+				break;
+			default:
+				throw new FileFormatException("not an interleaved stream: " + info.getFormat());
+		}
+		return(new Asset(info.getFormat(), stream));
+	}
+
+	/* creates a new playback from the start; only allocates the decoders
+	 * and one block of raw data */
+	public Cursor open() {
+		return(new Cursor(this));
+	}
+
+	public String getFormat() {
+		return(format);
+	}
+
+	public long getSampleRate() {
+		return(sample_rate);
+	}
+
+	public int getChannels() {
+		return(channel_count);
+	}
+
+	public long getSampleCount() {
+		return(index.getSampleCount());
+	}
+
+	public boolean isLooping() {
+		return(loop_flag != 0);
+	}
+
+	public TrackInfo[] getTracks() {
+		return((tracks == null) ? null : tracks.clone());
+	}
+
+	public BlockIndex getBlockIndex() {
+		return(index);
+	}
+
+	/* true if the decoder history at the start of every block is known (the
+	 * ADPC chunk of BRSTM), so blocks can be decoded independently */
+	public boolean hasBlockHistory() {
+		return(block_history != null);
+	}
+
+	/* creates a decoder of one channel, starting at a block and ignoring the
+	 * loop; other blocks than the first need hasBlockHistory(). Decoders are
+	 * independent of each other and of the cursors. */
+	public ChannelDecoder openChannel(int ch, int block) {
+		if((ch < 0) || (ch >= channel_count))
+			throw new IndexOutOfBoundsException("channel " + ch);
+		if((block != 0) && (block_history == null))
+			throw new IllegalStateException("no decoder history for block " + block);
+		return(new ChannelDecoder(this, ch, block));
+	}
+
+	public StreamInfo getInfo() {
+		return(new StreamInfo(format, sample_rate, channel_count, sample_count, loop_flag != 0, loop_start_sample, loop_end_sample, interleave_block_size));
+	}
+
+	/* closes the input; cursors that are still open fail on their next read */
+	public void close() throws IOException {
+		input.close();
+	}
+
+	@Override
+	public String toString() {
+		return(new String("Asset[" + format + "," + sample_rate + "Hz,16bit," + sample_count + " samples,loop:" + ((loop_flag != 0) ? "yes" : "no") + "," + channel_count + "ch]"));
+	}
+
+	/* decodes one channel block by block, reading only that channel's part
+	 * of every block */
+	public static class ChannelDecoder {
+		private final Asset	asset;
+		private final int	channel;
+		private final ADPCMDecoder decoder;
+		private final byte	rawdata[];
+		private final ByteBuffer rawbuffer;
+		private int		block;
+
+		private ChannelDecoder(Asset asset, int channel, int block) {
+			this.asset = asset;
+			this.channel = channel;
+			this.block = block;
+			decoder = new ADPCMDecoder();
+			decoder.setCoef(asset.coef[channel]);
+			if(asset.block_history != null && block < asset.index.getBlockCount()) {
+				int h = (block * asset.channel_count + channel) * 2;
+				decoder.setHistory(asset.block_history[h], asset.block_history[h + 1]);
+			} else
+				decoder.setHistory(0, 0);
+			rawdata = new byte[asset.index.getMaxLength() / asset.channel_count];
+			rawbuffer = ByteBuffer.wrap(rawdata);
+		}
+
+		/* the block decode() returns next */
+		public int getBlock() {
+			return(block);
+		}
+
+		public boolean hasMoreData() {
+			return(block < asset.index.getBlockCount());
+		}
+
+		/* decodes the next block into out, which holds at least
+		 * getBlockIndex().getSamplesPerBlock() samples; returns the samples
+		 * decoded, 0 at the end */
+		public int decode(short out[]) throws IOException {
+			BlockIndex index = asset.index;
+			if(block >= index.getBlockCount())
+				return(0);
+			int size = index.getSize(block);
+			rawbuffer.clear().limit(size);
+			int read = asset.input.read(index.getOffset(block) + (long)size * channel, rawbuffer);
+			if(read < size)
+				Arrays.fill(rawdata, Math.max(read, 0), size, (byte)0);
+			int samples = index.getSampleCount(block);
+			decoder.decode_ngc_dsp(rawdata, 0, 0, samples, out, 0, 1);
+			block++;
+			return(samples);
+		}
+	}
+
+	/* one playback of an asset; not thread-safe itself, but any number of
+	 * cursors of the same asset may be used from different threads */
+	public static class Cursor extends InterleavedStream {
+		private final Asset asset;
+
+		private Cursor(Asset asset) {
+			super(asset.input);
+			this.asset = asset;
+			sample_count = asset.sample_count;
+			sample_rate = asset.sample_rate;
+			loop_flag = asset.loop_flag;
+			loop_start_sample = asset.loop_start_sample;
+			loop_end_sample = asset.loop_end_sample;
+			channel_count = asset.channel_count;
+			coef = asset.coef;
+			start_offset = asset.start_offset;
+			interleave_block_size = asset.interleave_block_size;
+			interleave_smallblock_size = asset.interleave_smallblock_size;
+			index = asset.index;
+			tracks = asset.tracks;
+			block_history = asset.block_history;
+			initDecoding();
+		}
+
+		public Asset getAsset() {
+			return(asset);
+		}
+
+		/* the input belongs to the asset */
+		@Override
+		public void close() {
+		}
+
+		@Override
+		public String toString() {
+			return(new String("Cursor[" + asset + "]"));
+		}
+	}
+}
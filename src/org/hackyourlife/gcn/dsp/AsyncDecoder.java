@@ -1,14 +1,29 @@
 package org.hackyourlife.gcn.dsp;
 
+import java.nio.ByteBuffer;
+import java.nio.ShortBuffer;
+
 public class AsyncDecoder extends Thread implements Stream {
 	private Stream stream;
-	private byte[] data = null;
+	/* the decoder thread fills one buffer while the other one is handed out */
+	private short[][][] buffers;
+	private short[][] data = null;
+	private int frames = 0;
+	/* frames of data already handed out by decode(ShortBuffer/ByteBuffer) */
+	private int offset = 0;
 	private boolean moreData = false;
-	private boolean closed = false;
+	private volatile boolean closed = false;
+	/* frames left in the stream after the last decoded block, and decoded frames not handed out yet */
+	private long remaining;
+	private long buffered = 0;
 
 	public AsyncDecoder(Stream stream) {
 		this.stream = stream;
 		this.moreData = stream.hasMoreData();
+		this.remaining = stream.getRemainingFrames();
+		int channels = stream.getChannels();
+		int size = stream.getMaxBlockFrames();
+		this.buffers = new short[][][] { new short[channels][size], new short[channels][size] };
 	}
 
 	@Override
@@ -16,20 +31,100 @@ public class AsyncDecoder extends Thread implements Stream {
 		return moreData || data != null;
 	}
 
-	@Override
-	public synchronized byte[] decode() throws Exception {
+	/* waits for the next decoded block, returns false if there is none */
+	private boolean waitForData() throws InterruptedException {
 		if(!hasMoreData()) {
-			return null;
+			return false;
 		}
 		while(data == null) {
+			if(!moreData)
+				return false;
 			wait();
 		}
-		byte[] tmp = data;
+		return true;
+	}
+
+	private void release() {
+		buffered -= frames - offset;
+		offset = 0;
 		data = null;
 		notify();
+	}
+
+	@Override
+	public synchronized byte[] decode() throws Exception {
+		if(!waitForData()) {
+			return null;
+		}
+		int channels = data.length;
+		int count = frames - offset;
+		byte[] tmp = new byte[count * channels * 2];
+		PCM.interleave16(data, offset, tmp, 0, channels, count, true);
+		release();
 		return tmp;
 	}
 
+	@Override
+	public synchronized int decodePlanar(short[][] dst) throws Exception {
+		if(!waitForData()) {
+			return 0;
+		}
+		int count = frames - offset;
+		for(int ch = 0; ch < data.length; ch++)
+			System.arraycopy(data[ch], offset, dst[ch], 0, count);
+		release();
+		return count;
+	}
+
+	@Override
+	public synchronized int decodePlanar(float[][] dst) throws Exception {
+		if(!waitForData()) {
+			return 0;
+		}
+		int count = frames - offset;
+		for(int ch = 0; ch < data.length; ch++) {
+			short[] samples = data[ch];
+			float[] out = dst[ch];
+			for(int i = 0; i < count; i++)
+				out[i] = samples[offset + i] * (1.0f / 32768.0f);
+		}
+		release();
+		return count;
+	}
+
+	/* hands out at most as many frames as fit into dst, the rest of the block
+	 * stays for the next call */
+	@Override
+	public synchronized int decode(ShortBuffer dst) throws Exception {
+		if(!waitForData()) {
+			return 0;
+		}
+		int channels = data.length;
+		int count = Math.min(frames - offset, dst.remaining() / channels);
+		PCM.put(dst, data, offset, channels, count);
+		consume(count);
+		return count;
+	}
+
+	@Override
+	public synchronized int decode(ByteBuffer dst) throws Exception {
+		if(!waitForData()) {
+			return 0;
+		}
+		int channels = data.length;
+		int count = Math.min(frames - offset, dst.remaining() / (2 * channels));
+		PCM.put(dst, data, offset, channels, count);
+		consume(count);
+		return count;
+	}
+
+	private void consume(int count) {
+		buffered -= count;
+		offset += count;
+		if(offset >= frames)
+			release();
+	}
+
 	@Override
 	public int getChannels() {
 		return stream.getChannels();
@@ -40,6 +135,28 @@ public class AsyncDecoder extends Thread implements Stream {
 		return stream.getSampleRate();
 	}
 
+	@Override
+	public int getMaxBlockFrames() {
+		return stream.getMaxBlockFrames();
+	}
+
+	@Override
+	public long getLoopStartSample() {
+		return stream.getLoopStartSample();
+	}
+
+	@Override
+	public long getLoopEndSample() {
+		return stream.getLoopEndSample();
+	}
+
+	@Override
+	public synchronized long getRemainingFrames() {
+		if(remaining < 0)
+			return -1;
+		return remaining + buffered;
+	}
+
 	@Override
 	public void close() throws Exception {
 		closed = true;
@@ -47,21 +164,43 @@ public class AsyncDecoder extends Thread implements Stream {
 		stream.close();
 	}
 
+	/* stops decoding ahead but leaves the stream open so it can be reused */
+	public synchronized void stopDecoding() {
+		closed = true;
+		moreData = false;
+		notifyAll();
+	}
+
 	public void run() {
+		int next = 0;
 		while(!closed && stream.hasMoreData()) {
 			try {
+				short[][] buffer = buffers[next];
+				int count = stream.decodePlanar(buffer);
+				boolean more = stream.hasMoreData();
+				long left = stream.getRemainingFrames();
 				synchronized(this) {
-					if(data != null) {
+					while(data != null && !closed) {
 						wait();
 					}
-					data = stream.decode();
-					moreData = stream.hasMoreData();
+					if(closed)
+						return;
+					data = buffer;
+					frames = count;
+					moreData = more;
+					remaining = left;
+					buffered += count;
 					notifyAll();
 				}
+				next ^= 1;
 			} catch(InterruptedException e) {
 			} catch(Exception e) {
-				if (!e.getMessage().equalsIgnoreCase("Stream closed"))
+				if (!"Stream closed".equalsIgnoreCase(e.getMessage()))
 					e.printStackTrace();
+				synchronized(this) {
+					moreData = false;
+					notifyAll();
+				}
 				return;
 			}
 		}
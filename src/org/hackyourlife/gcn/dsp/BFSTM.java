@@ -6,36 +6,10 @@ import java.io.IOException;
 import java.io.InputStream;
 import java.io.RandomAccessFile;
 
-public class BFSTM implements Stream {
-	long	sample_count;
+public class BFSTM extends InterleavedStream {
 	long	nibble_count;
-	long	sample_rate;
-	int	loop_flag;
-	long	loop_start_sample;
-	long	loop_end_sample;
-	long	loop_start_offset;
-	long	loop_end_offset;
-	int	channel_count;
-	int	coef[][];
-
-	InputData inputData;
-	long	start_offset;
-	long	filepos;
-	long	filesize;
-
-	long	channel_start_offset[];
-	long	channel_offset[];
-
-	long	current_sample;
-	long	current_byte;
-
-	long	interleave_block_size;
-	long	interleave_smallblock_size;
-
 	int	codec;
 
-	ADPCMDecoder decoder[];
-
 	boolean	isBE;
 
 	public final static int CODEC_PCM8 = 0;
@@ -43,8 +17,7 @@ public class BFSTM implements Stream {
 	public final static int CODEC_ADPCM = 2;
 
 	public BFSTM(InputData InputData) throws FileFormatException, IOException {
-		this.inputData = InputData;
-		this.filesize = InputData.length();
+		super(InputData);
 		readHeader();
 		reset();
 	}
@@ -63,25 +36,6 @@ public class BFSTM implements Stream {
 		return (sign != 0) ? -(~x & 0xFFFF) : value;
 	}
 
-	public int read_8bit(long offset) throws IOException {
-		inputData.seek(offset);
-		return inputData.read();
-	}
-
-	public int read_16bitBE(long offset) throws IOException {
-		inputData.seek(offset);
-		byte[] data = new byte[2];
-		inputData.read(data);
-		return endianess.get_16bitBE(data);
-	}
-
-	public long read_32bitBE(long offset) throws IOException {
-		inputData.seek(offset);
-		byte[] data = new byte[4];
-		inputData.read(data);
-		return endianess.get_32bitBE(data);
-	}
-
 	public int read_16bitLE(long offset) throws IOException {
 		inputData.seek(offset);
 		byte[] data = new byte[2];
@@ -110,43 +64,53 @@ public class BFSTM implements Stream {
 			return read_32bitLE(offset);
 	}
 
-	@Override
-	public long getSampleRate() {
-		return(sample_rate);
-	}
-
-	@Override
-	public int getChannels() {
-		return(channel_count);
+	private static int get_16bit(byte[] data, int offset, boolean isBE) {
+		return(isBE ? endianess.get_16bitBE(data, offset) : endianess.get_16bitLE(data, offset));
 	}
 
-	public long getInterleaveSize() {
-		return interleave_block_size;
+	private static long get_32bit(byte[] data, int offset, boolean isBE) {
+		return(isBE ? endianess.get_32bitBE(data, offset) : endianess.get_32bitLE(data, offset));
 	}
 
-	public long getPreferedBufferSize() {
-		return getChannels() * (long)(getInterleaveSize() / 8.0 * 14.0);
-	}
+	/* returns null if the data is not a bfstm file */
+	public static StreamInfo probe(InputData in) throws IOException, FileFormatException {
+		byte[] header = StreamInfo.tryRead(in, 0, 0x14);
+		if((header == null) || (endianess.get_32bitBE(header, 0) != 0x4653544D)) // "FSTM"
+			return(null);
 
-	@Override
-	public void close() throws Exception {
-		inputData.close();
-	}
+		boolean isBE;
+		switch(endianess.get_16bitBE(header, 4)) {
+			case 0xFEFF:
+				isBE = true;
+				break;
+			case 0xFFFE:
+				isBE = false;
+				break;
+			default:
+				return(null);
+		}
 
-	@Override
-	public boolean hasMoreData() {
-		return((loop_flag != 0) || (filepos < filesize));
-	}
+		int section_count = get_16bit(header, 0x10, isBE);
+		byte[] sections = StreamInfo.read(in, 0x14, section_count * 0xC);
+		long info_offset = -1;
+		for(int i = 0; i < section_count; i++) {
+			if(get_16bit(sections, i * 0xC, isBE) == 0x4000)
+				info_offset = get_32bit(sections, i * 0xC + 4, isBE);
+		}
 
-	private void seek(long pos) throws IOException {
-		inputData.seek(start_offset + pos);
-		filepos = start_offset + pos;
-	}
+		byte[] info = StreamInfo.read(in, info_offset, 0x38);
+		if(endianess.get_32bitBE(info, 0) != 0x494E464F) // "INFO"
+			return(null);
+		if(info[0x20] != CODEC_ADPCM)
+			throw new FileFormatException("unknown codec");
+		int channel_count = info[0x22] & 0xFF;
+		if(channel_count < 1)
+			throw new FileFormatException("no channel");
 
-	public void reset() throws IOException {
-		seek(0);
-		for(int i = 0; i < channel_count; i++)
-			decoder[i].setHistory(0, 0);
+		long sample_count = get_32bit(info, 0x2C, isBE);
+		long loop_start_sample = get_32bit(info, 0x28, isBE);
+		boolean loop = (info[0x21] != 0) && (loop_start_sample < sample_count);
+		return(new StreamInfo("BFSTM", get_32bit(info, 0x24, isBE), channel_count, sample_count, loop, loop_start_sample, sample_count, get_32bit(info, 0x34, isBE)));
 	}
 
 	private void readHeader() throws FileFormatException, IOException {
@@ -216,8 +180,6 @@ public class BFSTM implements Stream {
 		this.sample_rate = read_32bit(info_offset + 0x24);
 		this.loop_start_sample = read_32bit(info_offset + 0x28);
 		this.loop_end_sample = this.sample_count;
-		this.loop_start_offset = (long)(this.loop_start_sample * 8.0 / 14.0);
-		this.loop_end_offset = (long)(this.loop_end_sample * 8.0 / 14.0);
 
 		this.interleave_block_size = read_32bit(info_offset + 0x34);
 		this.interleave_smallblock_size = read_32bit(info_offset + 0x44);
@@ -226,90 +188,18 @@ public class BFSTM implements Stream {
 			long coef_ptr_table = read_32bit(info_offset + 0x1C) + info_offset + 8;
 
 			this.coef = new int[this.channel_count][16];
-			this.decoder = new ADPCMDecoder[this.channel_count];
 			for(int j = 0; j < this.channel_count; j++) {
 				long tmp = read_32bit(coef_ptr_table + 8 + j * 8);
 				long coef_offset = tmp + coef_ptr_table;
 				coef_offset += read_32bit(coef_offset + 4);
 				for(int i = 0; i < 16; i++)
 					this.coef[j][i] = unsigned2signed16bit(read_16bit(coef_offset + i * 2));
-				this.decoder[j] = new ADPCMDecoder();
-				this.decoder[j].setCoef(this.coef[j]);
-				this.decoder[j].setHistory(0, 0);
 			}
 		}
 
 		this.start_offset = data_offset + 0x20;
 
-		this.channel_offset = new long[this.channel_count];
-		this.channel_start_offset = new long[this.channel_count];
-		for(int i = 0; i < this.channel_count; i++)
-			this.channel_start_offset[i] = this.channel_offset[i] = this.start_offset + i * this.interleave_block_size;
-
-		seek(0);
-		current_sample = 0;
-		current_byte = 0;
-	}
-
-	private int[] doDecode() throws Exception {
-		long start_offset = current_byte;
-		if((loop_flag != 0) && (current_byte >= loop_end_offset))
-			start_offset = loop_start_offset;
-		long blocks = start_offset / interleave_block_size;
-		if((loop_flag != 0) && (current_byte >= loop_end_offset))
-			current_byte = blocks * interleave_block_size;
-		else
-			current_byte = start_offset;
-		seek(blocks * interleave_block_size * channel_count);
-
-		start_offset = start_offset - (blocks * interleave_block_size);
-		start_offset = (start_offset / 8) * 8;
-		int startsample = (int)(start_offset / 8.0 * 14.0);
-
-		long interleave = interleave_block_size;
-		if((filesize - filepos) < (interleave_block_size * channel_count))
-			interleave = interleave_smallblock_size;
-
-		long end_offset = current_byte + interleave;
-		if((loop_flag != 0) && ((current_byte + interleave) > loop_end_offset))
-			end_offset = loop_end_offset;
-
-		int endsample = (int)((end_offset - current_byte) / 8.0 * 14.0);
-
-		byte[] rawdata = new byte[(int)(interleave * channel_count)];
-		int samplecnt = endsample - startsample;
-		int[] samples = new int[samplecnt * channel_count];
-		int read = inputData.read(rawdata);
-		filepos += read;
-		current_byte += read / channel_count;
-		for(int ch = 0; ch < channel_count; ch++) {
-			for(int i = 0; i < samplecnt; i += 14) {
-				int samplestodo = samplecnt - i;
-				if(samplestodo > 14)
-					samplestodo = 14;
-				int[] buf = decoder[ch].decode_ngc_dsp((int)(interleave * ch), startsample + i, samplestodo, rawdata);
-				for(int x = 0; x < buf.length; x++)
-					samples[(i + x) * channel_count + ch] = buf[x];
-			}
-		}
-		return samples;
-	}
-
-	@Override
-	public byte[] decode() throws Exception {
-		int[] samples = doDecode();
-		byte[] buffer = new byte[samples.length * 2];
-		for(int i = 0; i < samples.length; i++)
-			endianess.set16bit_BE(samples[i], buffer, i * 2);
-		return(buffer);
-	}
-
-	public short[] decode16() throws Exception {
-		int[] samples = doDecode();
-		short[] buffer = new short[samples.length];
-		for(int i = 0; i < samples.length; i++)
-			buffer[i] = (short) samples[i];
-		return(buffer);
+		buildIndex();
 	}
 
 	@Override
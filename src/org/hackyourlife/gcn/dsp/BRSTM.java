@@ -5,43 +5,16 @@ import org.hackyourlife.gcn.dsp.input.InputData;
 import java.io.IOException;
 import java.io.InputStream;
 import java.io.RandomAccessFile;
-public class BRSTM implements Stream {
-	long	sample_count;
+public class BRSTM extends InterleavedStream {
 	long	nibble_count;
-	long	sample_rate;
-	int	loop_flag;
-	long	loop_start_sample;
-	long	loop_end_sample;
-	long	loop_start_offset;
-	long	loop_end_offset;
-	int	channel_count;
-	int	coef[][];
-
-	InputData inputData;
-	long	start_offset;
-	long	filepos;
-	long	filesize;
-
-	long	channel_start_offset[];
-	long	channel_offset[];
-
-	long	current_sample;
-	long	current_byte;
-
-	long	interleave_block_size;
-	long	interleave_smallblock_size;
-
 	int	codec;
 
-	ADPCMDecoder decoder[];
-
 	public final static int CODEC_PCM8 = 0;
 	public final static int CODEC_PCM16BE = 1;
 	public final static int CODEC_ADPCM = 2;
 
 	public BRSTM(InputData inputData) throws FileFormatException, IOException {
-		this.inputData = inputData;
-		this.filesize = inputData.length();
+		super(inputData);
 		readHeader();
 		reset();
 	}
@@ -60,62 +33,40 @@ public class BRSTM implements Stream {
 		return (sign != 0) ? -(~x & 0xFFFF) : value;
 	}
 
-	public int read_8bit(long offset) throws IOException {
-		inputData.seek(offset);
-		return inputData.read();
-	}
-
-	public int read_16bitBE(long offset) throws IOException {
-		inputData.seek(offset);
-		byte[] data = new byte[2];
-		inputData.read(data);
-		return endianess.get_16bitBE(data);
-	}
+	/* returns null if the data is not a brstm file */
+	public static StreamInfo probe(InputData in) throws IOException, FileFormatException {
+		byte[] header = StreamInfo.tryRead(in, 0, 0x18);
+		if((header == null) || (endianess.get_32bitBE(header, 0) != 0x5253544D)) // "RSTM"
+			return(null);
 
-	public long read_32bitBE(long offset) throws IOException {
-		inputData.seek(offset);
-		byte[] data = new byte[4];
-		inputData.read(data);
-		return endianess.get_32bitBE(data);
-	}
-
-	@Override
-	public long getSampleRate() {
-		return(sample_rate);
-	}
-
-	@Override
-	public int getChannels() {
-		return(channel_count);
-	}
-
-	public long getInterleaveSize() {
-		return interleave_block_size;
-	}
-
-	public long getPreferedBufferSize() {
-		return getChannels() * (long)(getInterleaveSize() / 8.0 * 14.0);
-	}
-
-	@Override
-	public void close() throws Exception {
-		inputData.close();
-	}
+		boolean atlus_shrunken_head = false;
+		long version = endianess.get_32bitBE(header, 4);
+		if(version != 0xFEFF0100) {
+			if(version != 0xFEFF0001)
+				return(null);
+			atlus_shrunken_head = true;
+		}
 
-	@Override
-	public boolean hasMoreData() {
-		return((loop_flag != 0) || (filepos < filesize));
-	}
+		long head_offset = endianess.get_32bitBE(header, 0x10);
+		if(atlus_shrunken_head) {
+			if((head_offset != 0x48454144) || (endianess.get_32bitBE(header, 0x14) != 8))
+				return(null);
+			head_offset -= 8;
+		}
 
-	private void seek(long pos) throws IOException {
-		inputData.seek(start_offset + pos);
-		filepos = start_offset + pos;
-	}
+		byte[] head = StreamInfo.read(in, head_offset, 0x3C);
+		if(!atlus_shrunken_head && (endianess.get_32bitBE(head, 0) != 0x48454144)) // "HEAD"
+			return(null);
+		if(head[0x20] != CODEC_ADPCM)
+			throw new FileFormatException("unsupported codec");
+		int channel_count = head[0x22] & 0xFF;
+		if(channel_count < 1)
+			throw new FileFormatException("no channel");
 
-	public void reset() throws IOException {
-		seek(0);
-		for(int i = 0; i < channel_count; i++)
-			decoder[i].setHistory(0, 0);
+		long sample_count = endianess.get_32bitBE(head, 0x2C);
+		long loop_start_sample = endianess.get_32bitBE(head, 0x28);
+		boolean loop = (head[0x21] != 0) && (loop_start_sample < sample_count);
+		return(new StreamInfo("BRSTM", endianess.get_16bitBE(head, 0x24), channel_count, sample_count, loop, loop_start_sample, sample_count, endianess.get_32bitBE(head, 0x38)));
 	}
 
 	private void readHeader() throws FileFormatException, IOException {
@@ -164,8 +115,6 @@ public class BRSTM implements Stream {
 		this.sample_rate = read_16bitBE(head_offset + 0x24);
 		this.loop_start_sample = read_32bitBE(head_offset + 0x28);
 		this.loop_end_sample = this.sample_count;
-		this.loop_start_offset = (long)(this.loop_start_sample * 8.0 / 14.0);
-		this.loop_end_offset = (long)(this.loop_end_sample * 8.0 / 14.0);
 
 		this.interleave_block_size = read_32bitBE(head_offset + 0x38);
 		this.interleave_smallblock_size = read_32bitBE(head_offset + 0x48);
@@ -184,89 +133,60 @@ public class BRSTM implements Stream {
 			}
 
 			this.coef = new int[this.channel_count][16];
-			this.decoder = new ADPCMDecoder[this.channel_count];
 			for(int j = 0; j < this.channel_count; j++) {
 				for(int i = 0; i < 16; i++) {
 					this.coef[j][i] = unsigned2signed16bit(read_16bitBE(head_offset + coef_offset + j * coef_spacing + i * 2));
 				}
-				this.decoder[j] = new ADPCMDecoder();
-				this.decoder[j].setCoef(this.coef[j]);
-				this.decoder[j].setHistory(0, 0);
 			}
 		}
 
 		this.start_offset = read_32bitBE(head_offset + 0x30);
 
-		this.channel_offset = new long[this.channel_count];
-		this.channel_start_offset = new long[this.channel_count];
-		for(int i = 0; i < this.channel_count; i++) {
-			this.channel_start_offset[i] = this.channel_offset[i] = this.start_offset + i * this.interleave_block_size;
-		}
-
-		seek(0);
-		current_sample = 0;
-		current_byte = 0;
-	}
+		if(!atlus_shrunken_head)
+			this.tracks = readTracks(head_offset + 8);
 
-	private int[] doDecode() throws Exception {
-		long start_offset = current_byte;
-		if((loop_flag != 0) && (current_byte >= loop_end_offset))
-			start_offset = loop_start_offset;
-		long blocks = start_offset / interleave_block_size;
-		if((loop_flag != 0) && (current_byte >= loop_end_offset))
-			current_byte = blocks * interleave_block_size;
-		else
-			current_byte = start_offset;
-		seek(blocks * interleave_block_size * channel_count);
+		buildIndex();
 
-		start_offset = start_offset - (blocks * interleave_block_size);
-		start_offset = (start_offset / 8) * 8;
-		int startsample = (int)(start_offset / 8.0 * 14.0);
-
-		long interleave = interleave_block_size;
-		if((filesize - filepos) < (interleave_block_size * channel_count))
-			interleave = interleave_smallblock_size;
-
-		long end_offset = current_byte + interleave;
-		if((loop_flag != 0) && ((current_byte + interleave) > loop_end_offset))
-			end_offset = loop_end_offset;
-
-		int endsample = (int)((end_offset - current_byte) / 8.0 * 14.0);
-
-		byte[] rawdata = new byte[(int)(interleave * channel_count)];
-		int samplecnt = endsample - startsample;
-		int[] samples = new int[samplecnt * channel_count];
-		int read = inputData.read(rawdata);
-		filepos += read;
-		current_byte += read / channel_count;
-		for(int ch = 0; ch < channel_count; ch++) {
-			for(int i = 0; i < samplecnt; i += 14) {
-				int samplestodo = samplecnt - i;
-				if(samplestodo > 14)
-					samplestodo = 14;
-				int[] buf = decoder[ch].decode_ngc_dsp((int)(interleave * ch), startsample + i, samplestodo, rawdata);
-				for(int x = 0; x < buf.length; x++)
-					samples[(i + x) * channel_count + ch] = buf[x];
-			}
+		/* ADPC: decoder history at the start of every block */
+		long adpc_offset = read_32bitBE(0x18);
+		long adpc_size = read_32bitBE(0x1C);
+		if(!atlus_shrunken_head && (adpc_offset != 0) && (read_32bitBE(adpc_offset) == 0x41445043) // "ADPC"
+				&& (adpc_size >= 8 + (long)index.getBlockCount() * channel_count * 4)) {
+			readBlockHistory(adpc_offset + 8);
 		}
-		return samples;
 	}
 
-	@Override
-	public byte[] decode() throws Exception {
-		int[] samples = doDecode();
-		byte[] buffer = new byte[samples.length * 2];
-		for(int i = 0; i < samples.length; i++)
-			endianess.set16bit_BE(samples[i], buffer, i * 2);
-		return(buffer);
-	}
-
-	public short[] decode16() throws Exception {
-		int[] samples = doDecode();
-		short[] buffer = new short[samples.length];
-		for(int i = 0; i < samples.length; i++)
-			buffer[i] = (short) samples[i];
-		return(buffer);
+	/* HEAD chunk 2: track count and type, then a reference to every track;
+	 * type 0 tracks only list their channels, type 1 tracks start with the
+	 * volume and pan. Returns null if the table does not fit the channels. */
+	private TrackInfo[] readTracks(long base) throws IOException {
+		long table = base + read_32bitBE(base + 0x0C);
+		int track_count = read_8bit(table);
+		int type = read_8bit(table + 1);
+		if((track_count < 1) || (type > 1))
+			return(null);
+
+		TrackInfo tracks[] = new TrackInfo[track_count];
+		for(int t = 0; t < track_count; t++) {
+			long track = base + read_32bitBE(table + 8 + t * 8);
+			int volume = TrackInfo.VOLUME_MAX;
+			int pan = TrackInfo.PAN_CENTER;
+			if(type == 1) {
+				volume = read_8bit(track);
+				pan = read_8bit(track + 1);
+				track += 8;
+			}
+			int channels[] = new int[read_8bit(track)];
+			if(channels.length < 1)
+				return(null);
+			for(int c = 0; c < channels.length; c++) {
+				channels[c] = read_8bit(track + 1 + c);
+				if(channels[c] >= channel_count)
+					return(null);
+			}
+			tracks[t] = new TrackInfo(volume, pan, channels);
+		}
+		return(tracks);
 	}
 
 	@Override
@@ -0,0 +1,115 @@
+package org.hackyourlife.gcn.dsp;
+
+/* immutable table of the interleaved blocks of a stream, built once when the
+ * header is read so that decoding a block never has to compute its layout */
+public final class BlockIndex {
+	private final long	block_offset[];
+	private final int	block_size[];
+	private final int	block_samples[];
+	private final int	channel_count;
+	private final int	samples_per_block;
+	private final long	sample_count;
+
+	private BlockIndex(long[] block_offset, int[] block_size, int[] block_samples, int channel_count, int samples_per_block, long sample_count) {
+		this.block_offset = block_offset;
+		this.block_size = block_size;
+		this.block_samples = block_samples;
+		this.channel_count = channel_count;
+		this.samples_per_block = samples_per_block;
+		this.sample_count = sample_count;
+	}
+
+	/* data_end is the end of the file or -1 if unknown; the last block of the
+	 * stream is smallblock_size bytes per channel instead of block_size */
+	public static BlockIndex build(long data_offset, long data_end, int channel_count, long block_size, long smallblock_size, long sample_count) throws FileFormatException {
+		if(channel_count < 1)
+			throw new FileFormatException("no channel");
+		if((block_size < 8) || (block_size % 8) != 0 || block_size > Integer.MAX_VALUE / channel_count)
+			throw new FileFormatException("invalid interleave block size");
+		if(smallblock_size <= 0 || smallblock_size > block_size)
+			smallblock_size = block_size;
+
+		int samples_per_block = (int)(block_size / 8 * 14);
+		long stride = block_size * channel_count;
+		long count = (sample_count + samples_per_block - 1) / samples_per_block;
+		if(data_end >= 0) {
+			long available = (data_end - data_offset + stride - 1) / stride;
+			if(available < count)
+				count = available;
+		}
+		if(count < 0)
+			count = 0;
+		if(count > Integer.MAX_VALUE)
+			throw new FileFormatException("too many blocks");
+
+		int blocks = (int)count;
+		long offsets[] = new long[blocks];
+		int sizes[] = new int[blocks];
+		int counts[] = new int[blocks];
+		for(int i = 0; i < blocks; i++) {
+			long offset = data_offset + i * stride;
+			long size = (i == blocks - 1) ? smallblock_size : block_size;
+			if(data_end >= 0 && offset + size * channel_count > data_end)
+				size = (data_end - offset) / channel_count / 8 * 8;
+			long samples = sample_count - (long)i * samples_per_block;
+			if(samples > size / 8 * 14)
+				samples = size / 8 * 14;
+			offsets[i] = offset;
+			sizes[i] = (int)size;
+			counts[i] = (int)samples;
+		}
+
+		long total = 0;
+		if(blocks > 0)
+			total = (long)(blocks - 1) * samples_per_block + counts[blocks - 1];
+		return new BlockIndex(offsets, sizes, counts, channel_count, samples_per_block, total);
+	}
+
+	public int getBlockCount() {
+		return(block_offset.length);
+	}
+
+	public int getChannels() {
+		return(channel_count);
+	}
+
+	public int getSamplesPerBlock() {
+		return(samples_per_block);
+	}
+
+	/* amount of samples per channel covered by the index */
+	public long getSampleCount() {
+		return(sample_count);
+	}
+
+	/* file offset of the first channel of the block */
+	public long getOffset(int block) {
+		return(block_offset[block]);
+	}
+
+	/* size of one channel of the block in bytes */
+	public int getSize(int block) {
+		return(block_size[block]);
+	}
+
+	/* size of the whole block (all channels) in bytes */
+	public int getLength(int block) {
+		return(block_size[block] * channel_count);
+	}
+
+	public int getSampleCount(int block) {
+		return(block_samples[block]);
+	}
+
+	public long getFirstSample(int block) {
+		return((long)block * samples_per_block);
+	}
+
+	public boolean isLast(int block) {
+		return(block == block_offset.length - 1);
+	}
+
+	public int getMaxLength() {
+		return(block_offset.length == 0 ? 0 : getLength(0));
+	}
+}
@@ -5,9 +5,16 @@ import org.hackyourlife.gcn.dsp.input.InputData;
 import java.io.IOException;
 import java.io.InputStream;
 import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.ShortBuffer;
+import java.util.Arrays;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.Executor;
 
 public class DSP implements Stream {
 	public final static int HEADER_SIZE = 0x60;
+	public final static int DEFAULT_BATCH_FRAMES = 64;
 
 	long	sample_count;
 	long	nibble_count;
@@ -27,7 +34,9 @@ public class DSP implements Stream {
 	int	loop_hist2;
 
 	InputData inputData;
-	DSP	ch2;
+	/* the other channels of a split group, each one a mono DSP file */
+	DSP	group[];
+	Executor	read_executor;
 	long	filepos;
 	long	filesize;
 	long	startoffset;
@@ -36,9 +45,17 @@ public class DSP implements Stream {
 
 	ADPCMDecoder decoder;
 
+	/* ADPCM frames decoded per call */
+	int	batch_frames = DEFAULT_BATCH_FRAMES;
+	private byte	rawdata[] = new byte[DEFAULT_BATCH_FRAMES * 8];
+	/* wraps rawdata for the reads of the input */
+	private ByteBuffer	rawbuffer = ByteBuffer.wrap(rawdata);
+	private short	pcm[];
+	private short	pcm_out[][];
+
 	public DSP(InputData inputData)
 			throws FileFormatException, IOException {
-		ch2 = null;
+		group = new DSP[0];
 		this.inputData = inputData;
 		filesize = inputData.length();
 		readHeader();
@@ -46,9 +63,43 @@ public class DSP implements Stream {
 
 	public DSP(InputData ch1, InputData ch2)
 			throws FileFormatException, IOException {
-		this(ch1);
-		this.ch2 = new DSP(ch2);
-		validateChannel(this.ch2);
+		this(new InputData[] { ch1, ch2 });
+	}
+
+	/* one mono DSP file per channel, in channel order; the other channels
+	 * are closed again if one of them does not match the first */
+	public DSP(InputData[] channels)
+			throws FileFormatException, IOException {
+		this(first(channels));
+		DSP members[] = new DSP[channels.length - 1];
+		try {
+			for(int i = 1; i < channels.length; i++) {
+				members[i - 1] = new DSP(channels[i]);
+				validateChannel(members[i - 1], i);
+			}
+		} catch(FileFormatException | IOException e) {
+			for(DSP ch : members) {
+				if(ch == null)
+					continue;
+				try {
+					ch.close();
+				} catch(IOException x) {
+					e.addSuppressed(x);
+				}
+			}
+			throw e;
+		}
+		group = members;
+	}
+
+	private static InputData first(InputData[] channels) {
+		if(channels.length == 0)
+			throw new IllegalArgumentException("no channel");
+		return(channels[0]);
+	}
+
+	public DSP(RandomAccessFile[] channels) throws IOException, FileFormatException {
+		this(toInputData(channels));
 	}
 
 	public DSP(RandomAccessFile file) throws IOException, FileFormatException {
@@ -67,6 +118,13 @@ public class DSP implements Stream {
 		this(InputData.getInputData(ch1), InputData.getInputData(ch2));
 	}
 
+	private static InputData[] toInputData(RandomAccessFile[] files) {
+		InputData[] channels = new InputData[files.length];
+		for(int i = 0; i < files.length; i++)
+			channels[i] = InputData.getInputData(files[i]);
+		return(channels);
+	}
+
 	public final static int unsigned2signed16bit(int x) {
 		int sign = x & (1 << 15);
 		int value = x & ~(1 << 15);
@@ -121,7 +179,28 @@ public class DSP implements Stream {
 		return(true);
 	}
 
-	private void validateChannel(DSP ch) throws FileFormatException {
+	/* DSP has no magic, so this only rejects headers that read_dsp_header()
+	 * would reject; returns null in that case. A split stereo pair is probed
+	 * one file at a time. */
+	public static StreamInfo probe(InputData in) throws IOException {
+		byte[] header = StreamInfo.tryRead(in, 0, HEADER_SIZE);
+		if(header == null)
+			return(null);
+		long sample_count = endianess.get_32bitBE(header, 0x00);
+		long nibble_count = endianess.get_32bitBE(header, 0x04);
+		long sample_rate = endianess.get_32bitBE(header, 0x08);
+		long loop_start_offset = endianess.get_32bitBE(header, 0x10) / 16 * 8;
+		long loop_end_offset = endianess.get_32bitBE(header, 0x14) / 16 * 8;
+		if((sample_count > nibble_count) || (sample_rate == 0) || (loop_start_offset > loop_end_offset))
+			return(null);
+
+		long loop_start_sample = loop_start_offset / 8 * 14;
+		long loop_end_sample = Math.min(loop_end_offset / 8 * 14, sample_count);
+		boolean loop = (endianess.get_16bitBE(header, 0x0c) != 0) && (loop_start_sample < loop_end_sample);
+		return(new StreamInfo("DSP", sample_rate, 1, sample_count, loop, loop_start_sample, loop_end_sample, 0));
+	}
+
+	private void validateChannel(DSP ch, int channel) throws FileFormatException {
 		boolean invalid = false;
 		if(ch.sample_count != sample_count)
 			invalid = true;
@@ -136,7 +215,7 @@ public class DSP implements Stream {
 		if(ch.loop_end_offset != loop_end_offset)
 			invalid = true;
 		if(invalid)
-			throw new FileFormatException("channels do not match");
+			throw new FileFormatException("channel " + channel + " does not match channel 0");
 	}
 
 	@Override
@@ -146,10 +225,12 @@ public class DSP implements Stream {
 
 	@Override
 	public int getChannels() {
-		if(ch2 == null)
-			return(1);
-		else
-			return(2);
+		return(1 + group.length);
+	}
+
+	@Override
+	public int getMaxBlockFrames() {
+		return(batch_frames * 14);
 	}
 
 	private void readHeader() throws FileFormatException, IOException {
@@ -159,6 +240,12 @@ public class DSP implements Stream {
 		inputData.read(header);
 		if(!read_dsp_header(header))
 			throw new FileFormatException("not a devkit DSP file");
+		/* a forward-only input may not know its length and can not go back
+		 * to the loop start; the data ends where the samples do */
+		if(filesize < 0)
+			filesize = startoffset + (sample_count + 13) / 14 * 8;
+		if(inputData.isForwardOnly())
+			loop_flag = 0;
 		decoder = new ADPCMDecoder();
 		decoder.setCoef(coef);
 		decoder.setHistory(initial_hist1, initial_hist2);
@@ -169,10 +256,9 @@ public class DSP implements Stream {
 	@Override
 	public void close() throws IOException {
 		inputData.close();
-		if(ch2 != null) {
-			ch2.close();
-			ch2 = null;
-		}
+		for(DSP ch : group)
+			ch.close();
+		group = new DSP[0];
 	}
 
 	private void seek(long offset) throws IOException {
@@ -184,36 +270,164 @@ public class DSP implements Stream {
 	}
 
 	@Override
-	public byte[] decode() throws IOException {
-		if(getChannels() == 1)
-			return doDecode();
-		byte[] ch1 = doDecode();
-		byte[] ch2 = this.ch2.doDecode();
-		byte[] r = new byte[ch1.length + ch2.length];
-		for(int i = 0; i < ch1.length; i += 2) {
-			r[2 * i    ] = ch1[i    ];
-			r[2 * i + 1] = ch1[i + 1];
-			r[2 * i + 2] = ch2[i    ];
-			r[2 * i + 3] = ch2[i + 1];
-		}
-		return(r);
-	}
-
-	private byte[] doDecode() throws IOException {
-		byte[] rawdata = new byte[8];
-		filepos += inputData.read(rawdata);
-		int[] samples = decoder.decode_ngc_dsp(0, 0, (int)(rawdata.length / 8.0 * 14.0), rawdata);
-		byte[] buffer = new byte[samples.length * 2];
-		for(int i = 0; i < samples.length; i++)
-			endianess.set16bit_BE(samples[i], buffer, i * 2);
-		current_sample += samples.length;
-		if((loop_flag != 0) && ((filepos - startoffset) >= loop_end_offset)) {
-			filepos = startoffset + (loop_start_offset / 8) * 8;
-			seek(filepos);
+	public long getRemainingFrames() {
+		if(loop_flag != 0)
+			return(-1);
+		return(Math.max(filesize - filepos, 0) / 8 * 14);
+	}
+
+	/* sets how many samples one decode call returns, rounded up to whole
+	 * ADPCM frames of 14 samples; call it before the stream is handed to an
+	 * AsyncDecoder, which sizes its buffers from getMaxBlockFrames() */
+	public void setBatchSize(int samples) {
+		int frames = Math.max((samples + 13) / 14, 1);
+		if(frames == batch_frames)
+			return;
+		batch_frames = frames;
+		rawdata = new byte[frames * 8];
+		rawbuffer = ByteBuffer.wrap(rawdata);
+		pcm = null;
+		pcm_out = null;
+		for(DSP ch : group)
+			ch.setBatchSize(samples);
+	}
+
+	/* same as setBatchSize() with the size given as a duration */
+	public void setBatchMillis(int millis) {
+		setBatchSize((int)(sample_rate * millis / 1000));
+	}
+
+	public int getBatchSize() {
+		return(batch_frames * 14);
+	}
+
+	/* reads the channels of a group on the executor instead of one after the
+	 * other, so slow storage serves the files concurrently; null reads them
+	 * on the decoding thread */
+	public void setReadExecutor(Executor executor) {
+		read_executor = executor;
+	}
+
+	/* decodes up to frames ADPCM frames interleaved into pcm */
+	private int decodeInterleaved(int frames) throws IOException {
+		if(pcm == null) {
+			pcm = new short[batch_frames * 14 * getChannels()];
+			pcm_out = new short[][] { pcm };
 		}
+		return(decodeBatch(Math.min(frames, batch_frames), pcm_out, true));
+	}
+
+	@Override
+	public int decode(ShortBuffer dst) throws IOException {
+		int channels = getChannels();
+		int samples = decodeInterleaved(dst.remaining() / channels / 14);
+		dst.put(pcm, 0, samples * channels);
+		return(samples);
+	}
+
+	@Override
+	public int decode(ByteBuffer dst) throws IOException {
+		int channels = getChannels();
+		int samples = decodeInterleaved(dst.remaining() / (2 * channels) / 14);
+		PCM.put(dst, pcm, 0, samples * channels);
+		return(samples);
+	}
+
+	@Override
+	public long getLoopStartSample() {
+		if(loop_flag == 0)
+			return(-1);
+		return(loop_start_offset / 8 * 14);
+	}
+
+	/* the loop end is checked after every frame, so the last frame before it
+	 * is played completely */
+	@Override
+	public long getLoopEndSample() {
+		if(loop_flag == 0)
+			return(-1);
+		return((loop_end_offset + 7) / 8 * 14);
+	}
+
+	@Override
+	public byte[] decode() throws IOException {
+		int channels = getChannels();
+		int samples = decodeInterleaved(batch_frames);
+		int count = samples * channels;
+		byte[] buffer = new byte[count * 2];
+		PCM.toBytes16(pcm, 0, buffer, 0, count, true);
 		return(buffer);
 	}
 
+	@Override
+	public int decodePlanar(short[][] dst) throws IOException {
+		int frames = Math.min(batch_frames, dst[0].length / 14);
+		return(decodeBatch(frames, dst, false));
+	}
+
+	/* decodes up to frames ADPCM frames of every channel, either interleaved
+	 * into out[0] or planar into out[ch]. Loop end and end of file are
+	 * checked per frame, runs of frames between them are read at once. */
+	private int decodeBatch(int frames, short[][] out, boolean interleaved) throws IOException {
+		int channels = getChannels();
+		int stride = interleaved ? channels : 1;
+		int samples = 0;
+		while(frames > 0 && hasMoreData()) {
+			long position = filepos - startoffset;
+			int run = (int)Math.min(frames, (filesize - filepos + 7) / 8);
+			if(loop_flag != 0)
+				run = (int)Math.min(run, Math.max((loop_end_offset - position + 7) / 8, 1));
+
+			int base = samples * stride;
+			if((read_executor != null) && (group.length > 0)) {
+				CompletableFuture<?> reads[] = new CompletableFuture<?>[group.length];
+				for(int i = 0; i < group.length; i++) {
+					DSP ch = group[i];
+					long pos = filepos;
+					int count = run;
+					short[] dst = interleaved ? out[0] : out[i + 1];
+					int offset = interleaved ? base + i + 1 : base;
+					reads[i] = CompletableFuture.runAsync(() -> {
+						try {
+							ch.readFrames(pos, count, dst, offset, stride);
+						} catch(IOException e) {
+							throw new CompletionException(e);
+						}
+					}, read_executor);
+				}
+				readFrames(filepos, run, out[0], base, stride);
+				try {
+					CompletableFuture.allOf(reads).join();
+				} catch(CompletionException e) {
+					if(e.getCause() instanceof IOException)
+						throw (IOException)e.getCause();
+					throw e;
+				}
+			} else {
+				readFrames(filepos, run, out[0], base, stride);
+				for(int i = 0; i < group.length; i++)
+					group[i].readFrames(filepos, run, interleaved ? out[0] : out[i + 1], interleaved ? base + i + 1 : base, stride);
+			}
+			filepos = Math.min(filepos + run * 8, filesize);
+			samples += run * 14;
+			frames -= run;
+
+			if((loop_flag != 0) && ((filepos - startoffset) >= loop_end_offset))
+				filepos = startoffset + (loop_start_offset / 8) * 8;
+		}
+		current_sample += samples;
+		return(samples);
+	}
+
+	private void readFrames(long pos, int frames, short[] out, int offset, int stride) throws IOException {
+		int length = frames * 8;
+		rawbuffer.clear().limit(length);
+		int read = inputData.read(pos, rawbuffer);
+		if(read < length)
+			Arrays.fill(rawdata, Math.max(read, 0), length, (byte)0);
+		decoder.decode_ngc_dsp(rawdata, 0, 0, frames * 14, out, offset, stride);
+	}
+
 	@Override
 	public String toString() {
 		return(new String("DSP[" + sample_rate + "Hz,16bit," + sample_count + " samples,loop:" + ((loop_flag != 0) ? "yes" : "no") + "]"));
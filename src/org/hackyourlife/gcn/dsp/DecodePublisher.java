@@ -0,0 +1,173 @@
+package org.hackyourlife.gcn.dsp;
+
+import java.nio.ShortBuffer;
+import java.util.concurrent.Executor;
+import java.util.concurrent.Flow;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/* publishes the decoded blocks of a stream as interleaved 16 bit samples,
+ * one ShortBuffer per block (flipped, owned by the subscriber). Blocks are
+ * only decoded when the subscriber requested them; decoding runs on the
+ * given executor, one task at a time per subscription, never on a thread of
+ * its own; the executor should not run tasks on the calling thread. A stream
+ * can be subscribed to once. The publisher owns the stream and closes it
+ * when it completes, fails or the subscription is cancelled. */
+public class DecodePublisher implements Flow.Publisher<ShortBuffer> {
+	/* blocks emitted per executor task before the task is requeued, so an
+	 * unbounded request does not occupy a pool thread forever */
+	private final static int BATCH_BLOCKS = 16;
+
+	private final Stream stream;
+	private final Executor executor;
+	private final AtomicBoolean subscribed = new AtomicBoolean();
+
+	public DecodePublisher(Stream stream, Executor executor) {
+		if((stream == null) || (executor == null))
+			throw new NullPointerException();
+		this.stream = stream;
+		this.executor = executor;
+	}
+
+	@Override
+	public void subscribe(Flow.Subscriber<? super ShortBuffer> subscriber) {
+		if(subscriber == null)
+			throw new NullPointerException("subscriber");
+		if(!subscribed.compareAndSet(false, true)) {
+			subscriber.onSubscribe(new Flow.Subscription() {
+				@Override
+				public void request(long n) {
+				}
+
+				@Override
+				public void cancel() {
+				}
+			});
+			subscriber.onError(new IllegalStateException("stream already subscribed"));
+			return;
+		}
+		Subscription subscription = new Subscription(subscriber);
+		subscriber.onSubscribe(subscription);
+	}
+
+	private class Subscription implements Flow.Subscription, Runnable {
+		private final Flow.Subscriber<? super ShortBuffer> subscriber;
+		private final AtomicLong demand = new AtomicLong();
+		/* pending signals; the drain task runs while it is not zero */
+		private final AtomicInteger pending = new AtomicInteger();
+		private volatile boolean cancelled = false;
+		private volatile Throwable invalid;
+		/* only touched by the drain task */
+		private boolean done = false;
+
+		private Subscription(Flow.Subscriber<? super ShortBuffer> subscriber) {
+			this.subscriber = subscriber;
+		}
+
+		@Override
+		public void request(long n) {
+			if(n <= 0) {
+				invalid = new IllegalArgumentException("non-positive request " + n);
+			} else {
+				long current, next;
+				do {
+					current = demand.get();
+					next = current + n;
+					if(next < 0)
+						next = Long.MAX_VALUE;
+				} while(!demand.compareAndSet(current, next));
+			}
+			schedule();
+		}
+
+		@Override
+		public void cancel() {
+			cancelled = true;
+			schedule();
+		}
+
+		private void schedule() {
+			if(pending.getAndIncrement() == 0)
+				execute();
+		}
+
+		private void execute() {
+			try {
+				executor.execute(this);
+			} catch(RejectedExecutionException e) {
+				/* nothing can run the subscription any more */
+				finish();
+				subscriber.onError(e);
+			}
+		}
+
+		/* the drain task: emits blocks while there is demand */
+		@Override
+		public void run() {
+			int missed = pending.get();
+			int emitted = 0;
+			while(true) {
+				while(!done) {
+					if(cancelled) {
+						finish();
+						break;
+					}
+					Throwable error = invalid;
+					if(error != null) {
+						finish();
+						subscriber.onError(error);
+						break;
+					}
+					if(demand.get() == 0)
+						break;
+					if(emitted == BATCH_BLOCKS) {
+						/* keep the pending count, so no other task starts meanwhile */
+						execute();
+						return;
+					}
+
+					ShortBuffer block;
+					try {
+						block = next();
+					} catch(Throwable e) {
+						finish();
+						subscriber.onError(e);
+						break;
+					}
+					if(block == null) {
+						finish();
+						subscriber.onComplete();
+						break;
+					}
+					demand.decrementAndGet();
+					emitted++;
+					subscriber.onNext(block);
+				}
+				missed = pending.addAndGet(-missed);
+				if(missed == 0)
+					return;
+			}
+		}
+
+		/* decodes the next non-empty block, null at the end of the stream */
+		private ShortBuffer next() throws Exception {
+			ShortBuffer block = ShortBuffer.allocate(stream.getMaxBlockFrames() * stream.getChannels());
+			while(stream.hasMoreData()) {
+				if(stream.decode(block) > 0)
+					return(block.flip());
+			}
+			return(null);
+		}
+
+		private void finish() {
+			done = true;
+			try {
+				stream.close();
+			} catch(Exception e) {
+				e.printStackTrace();
+			}
+		}
+	}
+}
@@ -0,0 +1,409 @@
+package org.hackyourlife.gcn.dsp;
+
+import org.hackyourlife.gcn.dsp.input.InputData;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ShortBuffer;
+import java.util.Arrays;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/* decoding engine shared by the containers storing ADPCM channels in
+ * interleaved blocks (BRSTM, BFSTM, RS03); the containers only parse their
+ * header and call buildIndex() */
+public abstract class InterleavedStream implements Stream {
+	long	sample_count;
+	long	sample_rate;
+	int	loop_flag;
+	long	loop_start_sample;
+	long	loop_end_sample;
+	int	channel_count;
+	int	coef[][];
+
+	InputData inputData;
+	long	start_offset;
+	long	filesize;
+
+	long	interleave_block_size;
+	long	interleave_smallblock_size;
+
+	BlockIndex index;
+	ADPCMDecoder decoder[];
+
+	long	current_sample;
+	int	current_block;
+	int	block_sample;
+
+	/* blocks announced to the input ahead of the one being decoded */
+	int	read_ahead = 2;
+
+	/* track table, null if the container has none */
+	TrackInfo	tracks[];
+	/* decoder history at the start of every block (hist1, hist2 for each
+	 * block and channel), null if the container does not store it */
+	short	block_history[];
+
+	private byte	rawdata[];
+	/* wraps rawdata for the reads of the input */
+	private ByteBuffer	rawbuffer;
+	private int	loaded_block = -1;
+	private short	pcm[];
+
+	/* channels not to decode, as requested and as applied by the decoding thread */
+	private volatile boolean skip_request[];
+	private boolean	skipped[];
+	private AtomicLongArray resumed_at;
+	private long	frames_decoded;
+
+	protected InterleavedStream(InputData inputData) {
+		this.inputData = inputData;
+		this.filesize = inputData.length();
+	}
+
+	public int read_8bit(long offset) throws IOException {
+		inputData.seek(offset);
+		return inputData.read();
+	}
+
+	public int read_16bitBE(long offset) throws IOException {
+		inputData.seek(offset);
+		byte[] data = new byte[2];
+		inputData.read(data);
+		return endianess.get_16bitBE(data);
+	}
+
+	public long read_32bitBE(long offset) throws IOException {
+		inputData.seek(offset);
+		byte[] data = new byte[4];
+		inputData.read(data);
+		return endianess.get_32bitBE(data);
+	}
+
+	/* called by the containers once all header fields are known */
+	void buildIndex() throws FileFormatException {
+		if(coef == null)
+			throw new FileFormatException("unsupported codec");
+		index = BlockIndex.build(start_offset, filesize, channel_count, interleave_block_size, interleave_smallblock_size, sample_count);
+		if(loop_end_sample > index.getSampleCount())
+			loop_end_sample = index.getSampleCount();
+		/* going back to the loop start is not possible on a forward-only input */
+		if((loop_start_sample >= loop_end_sample) || inputData.isForwardOnly())
+			loop_flag = 0;
+		if((block_history != null) && (block_history.length < index.getBlockCount() * channel_count * 2))
+			block_history = null;
+		initDecoding();
+	}
+
+	/* allocates the playback state, once the header fields and the index are
+	 * known; the output buffer for interleaved decoding is allocated on first use */
+	void initDecoding() {
+		decoder = new ADPCMDecoder[channel_count];
+		for(int i = 0; i < channel_count; i++) {
+			decoder[i] = new ADPCMDecoder();
+			decoder[i].setCoef(coef[i]);
+			decoder[i].setHistory(0, 0);
+		}
+		rawdata = new byte[index.getMaxLength()];
+		rawbuffer = ByteBuffer.wrap(rawdata);
+		loaded_block = -1;
+		skipped = new boolean[channel_count];
+		resumed_at = new AtomicLongArray(channel_count);
+	}
+
+	private short[] pcm() {
+		if(pcm == null)
+			pcm = new short[index.getSamplesPerBlock() * channel_count];
+		return(pcm);
+	}
+
+	/* reads the hist1/hist2 pairs of every block and channel from a table of
+	 * big-endian 16 bit values */
+	void readBlockHistory(long offset) throws IOException {
+		byte data[] = new byte[index.getBlockCount() * channel_count * 4];
+		if(inputData.read(offset, data, 0, data.length) < data.length)
+			return;
+		block_history = new short[data.length / 2];
+		for(int i = 0; i < block_history.length; i++)
+			block_history[i] = (short)endianess.get_16bitBE(data, i * 2);
+	}
+
+	@Override
+	public long getSampleRate() {
+		return(sample_rate);
+	}
+
+	@Override
+	public int getChannels() {
+		return(channel_count);
+	}
+
+	public long getInterleaveSize() {
+		return interleave_block_size;
+	}
+
+	public long getPreferedBufferSize() {
+		return getChannels() * (long)index.getSamplesPerBlock();
+	}
+
+	@Override
+	public int getMaxBlockFrames() {
+		return(index.getSamplesPerBlock());
+	}
+
+	@Override
+	public long getRemainingFrames() {
+		if(loop_flag != 0)
+			return(-1);
+		return(Math.max(index.getSampleCount() - current_sample, 0));
+	}
+
+	/* the loop restarts at the ADPCM frame containing the loop start */
+	@Override
+	public long getLoopStartSample() {
+		if(loop_flag == 0)
+			return(-1);
+		return(loop_start_sample / 14 * 14);
+	}
+
+	@Override
+	public long getLoopEndSample() {
+		if(loop_flag == 0)
+			return(-1);
+		return(loop_end_sample);
+	}
+
+	@Override
+	public TrackInfo[] getTracks() {
+		return((tracks == null) ? null : tracks.clone());
+	}
+
+	/* channels can only be skipped if the decoder history of every block is
+	 * known, otherwise a resumed channel would start with a wrong history */
+	public boolean canSkipChannels() {
+		return(block_history != null);
+	}
+
+	/* stops or resumes decoding a channel; a skipped channel decodes to
+	 * silence. Takes effect with the next decode call. A resumed channel
+	 * continues with the history stored for the current block and decodes
+	 * the samples of the block before the cursor again, so it plays on as on
+	 * the first pass through the block. Ignored if canSkipChannels() is false. */
+	public synchronized void setChannelSkipped(int ch, boolean skip) {
+		if(block_history == null)
+			return;
+		boolean request[] = (skip_request == null) ? new boolean[channel_count] : skip_request.clone();
+		if(request[ch] && !skip)
+			resumed_at.set(ch, Long.MAX_VALUE);
+		request[ch] = skip;
+		skip_request = request;
+	}
+
+	/* frames handed out by all decode calls so far */
+	public long getDecodedFrames() {
+		return(frames_decoded);
+	}
+
+	/* value of getDecodedFrames() before the first decode call that contained
+	 * the channel again after it was resumed, Long.MAX_VALUE while a resume is
+	 * pending */
+	public long getChannelResumeFrame(int ch) {
+		return(resumed_at.get(ch));
+	}
+
+	/* applies the requested skips at the cursor, the block at it is loaded */
+	private void applySkips() {
+		boolean request[] = skip_request;
+		if((request == null) || (current_block >= index.getBlockCount()))
+			return;
+		for(int ch = 0; ch < channel_count; ch++) {
+			if(request[ch] == skipped[ch]) {
+				/* resumed before the skip was applied */
+				if(!skipped[ch] && (resumed_at.get(ch) == Long.MAX_VALUE))
+					resumed_at.set(ch, frames_decoded);
+				continue;
+			}
+			skipped[ch] = request[ch];
+			if(skipped[ch])
+				continue;
+			int h = (current_block * channel_count + ch) * 2;
+			decoder[ch].setHistory(block_history[h], block_history[h + 1]);
+			if(block_sample > 0)
+				decoder[ch].decode_ngc_dsp(rawdata, index.getSize(current_block) * ch, 0, block_sample, pcm(), 0, 1);
+			resumed_at.set(ch, frames_decoded);
+		}
+	}
+
+	public BlockIndex getBlockIndex() {
+		return index;
+	}
+
+	@Override
+	public void close() throws Exception {
+		inputData.close();
+	}
+
+	@Override
+	public boolean hasMoreData() {
+		return((loop_flag != 0) || (current_block < index.getBlockCount()));
+	}
+
+	public void reset() throws IOException {
+		seekSample(0);
+		for(int i = 0; i < channel_count; i++)
+			decoder[i].setHistory(0, 0);
+	}
+
+	/* moves to the ADPCM frame containing the sample, keeps the decoder history */
+	private void seekSample(long sample) {
+		sample = sample / 14 * 14;
+		current_block = (int)(sample / index.getSamplesPerBlock());
+		block_sample = (int)(sample - index.getFirstSample(current_block));
+		current_sample = sample;
+	}
+
+	/* loads the block at the cursor and returns the amount of samples left in it */
+	private int nextBlock() throws IOException {
+		if((loop_flag != 0) && ((current_sample >= loop_end_sample) || (current_block >= index.getBlockCount())))
+			seekSample(loop_start_sample);
+		if(current_block >= index.getBlockCount())
+			return(0);
+
+		int end = index.getSampleCount(current_block);
+		if(loop_flag != 0) {
+			long loop_end = loop_end_sample - index.getFirstSample(current_block);
+			if(loop_end < end)
+				end = (int)loop_end;
+		}
+
+		if(loaded_block != current_block) {
+			int length = index.getLength(current_block);
+			rawbuffer.clear().limit(length);
+			int read = inputData.read(index.getOffset(current_block), rawbuffer);
+			if(read < length)
+				Arrays.fill(rawdata, Math.max(read, 0), length, (byte) 0);
+			loaded_block = current_block;
+			prefetch();
+		}
+		applySkips();
+		return(Math.max(end - block_sample, 0));
+	}
+
+	/* hints the blocks following the loaded one, wrapping at the loop end */
+	private void prefetch() {
+		int block = current_block;
+		for(int i = 0; i < read_ahead; i++) {
+			block++;
+			if((loop_flag != 0) && ((block >= index.getBlockCount()) || (index.getFirstSample(block) >= loop_end_sample)))
+				block = (int)(loop_start_sample / index.getSamplesPerBlock());
+			if(block >= index.getBlockCount())
+				return;
+			inputData.prefetch(index.getOffset(block), index.getLength(block));
+		}
+	}
+
+	/* sets how many blocks ahead of decoding are read in the background, for
+	 * inputs that support it (see InputData.getReadAheadInputData) */
+	public void setReadAhead(int blocks) {
+		read_ahead = Math.max(blocks, 0);
+	}
+
+	/* decodes samples of the loaded block into out (interleaved) and advances the cursor */
+	private void decodeSamples(short[] out, int offset, int samples) {
+		if(samples == 0)
+			return;
+		int size = index.getSize(current_block);
+		for(int ch = 0; ch < channel_count; ch++) {
+			if(skipped[ch]) {
+				for(int i = 0, p = offset + ch; i < samples; i++, p += channel_count)
+					out[p] = 0;
+			} else {
+				decoder[ch].decode_ngc_dsp(rawdata, size * ch, block_sample, samples, out, offset + ch, channel_count);
+			}
+		}
+		advance(samples);
+	}
+
+	private void advance(int samples) {
+		frames_decoded += samples;
+		block_sample += samples;
+		current_sample += samples;
+		if(block_sample >= index.getSampleCount(current_block)) {
+			current_block++;
+			block_sample = 0;
+		}
+	}
+
+	@Override
+	public byte[] decode() throws Exception {
+		int samples = nextBlock();
+		short pcm[] = pcm();
+		decodeSamples(pcm, 0, samples);
+		int count = samples * channel_count;
+		byte[] buffer = new byte[count * 2];
+		PCM.toBytes16(pcm, 0, buffer, 0, count, true);
+		return(buffer);
+	}
+
+	/* decodes at most dst[0].length frames of the current block */
+	@Override
+	public int decodePlanar(short[][] dst) throws Exception {
+		int samples = Math.min(nextBlock(), dst[0].length);
+		if(samples == 0)
+			return(0);
+		int size = index.getSize(current_block);
+		for(int ch = 0; ch < channel_count; ch++) {
+			if(skipped[ch])
+				Arrays.fill(dst[ch], 0, samples, (short)0);
+			else
+				decoder[ch].decode_ngc_dsp(rawdata, size * ch, block_sample, samples, dst[ch], 0, 1);
+		}
+		advance(samples);
+		return(samples);
+	}
+
+	@Override
+	public int decodePlanar(float[][] dst) throws Exception {
+		int samples = Math.min(nextBlock(), dst[0].length);
+		if(samples == 0)
+			return(0);
+		int size = index.getSize(current_block);
+		short pcm[] = pcm();
+		for(int ch = 0; ch < channel_count; ch++) {
+			if(skipped[ch]) {
+				Arrays.fill(dst[ch], 0, samples, 0.0f);
+				continue;
+			}
+			decoder[ch].decode_ngc_dsp(rawdata, size * ch, block_sample, samples, pcm, 0, 1);
+			float[] out = dst[ch];
+			for(int i = 0; i < samples; i++)
+				out[i] = pcm[i] * (1.0f / 32768.0f);
+		}
+		advance(samples);
+		return(samples);
+	}
+
+	@Override
+	public int decode(ShortBuffer dst) throws Exception {
+		int samples = Math.min(nextBlock(), dst.remaining() / channel_count);
+		short pcm[] = pcm();
+		decodeSamples(pcm, 0, samples);
+		dst.put(pcm, 0, samples * channel_count);
+		return(samples);
+	}
+
+	@Override
+	public int decode(ByteBuffer dst) throws Exception {
+		int samples = Math.min(nextBlock(), dst.remaining() / (2 * channel_count));
+		short pcm[] = pcm();
+		decodeSamples(pcm, 0, samples);
+		PCM.put(dst, pcm, 0, samples * channel_count);
+		return(samples);
+	}
+
+	public short[] decode16() throws Exception {
+		int samples = nextBlock();
+		short pcm[] = pcm();
+		decodeSamples(pcm, 0, samples);
+		return(Arrays.copyOf(pcm, samples * channel_count));
+	}
+}
@@ -0,0 +1,192 @@
+package org.hackyourlife.gcn.dsp;
+
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.VarHandle;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.ShortBuffer;
+
+/* bulk conversions between 16 bit samples and the sample formats of sound
+ * devices and files. Byte arrays are written through VarHandle views, so
+ * every sample is a single store in the requested byte order instead of two
+ * byte stores; in native order it is a plain store. Arguments are in the
+ * order of System.arraycopy: source, source offset, destination, destination
+ * offset, count. */
+public final class PCM {
+	/* the byte order of the host, the cheapest to hand to a sound device */
+	public final static boolean NATIVE_BIG_ENDIAN = ByteOrder.nativeOrder() == ByteOrder.BIG_ENDIAN;
+
+	private final static VarHandle SHORT_BE = MethodHandles.byteArrayViewVarHandle(short[].class, ByteOrder.BIG_ENDIAN);
+	private final static VarHandle SHORT_LE = MethodHandles.byteArrayViewVarHandle(short[].class, ByteOrder.LITTLE_ENDIAN);
+	private final static VarHandle FLOAT_BE = MethodHandles.byteArrayViewVarHandle(float[].class, ByteOrder.BIG_ENDIAN);
+	private final static VarHandle FLOAT_LE = MethodHandles.byteArrayViewVarHandle(float[].class, ByteOrder.LITTLE_ENDIAN);
+
+	private PCM() {
+	}
+
+	/* writes one 16 bit sample */
+	public static void put16(byte out[], int offset, int sample, boolean big_endian) {
+		if(big_endian)
+			SHORT_BE.set(out, offset, (short)sample);
+		else
+			SHORT_LE.set(out, offset, (short)sample);
+	}
+
+	public static short get16(byte in[], int offset, boolean big_endian) {
+		return(big_endian ? (short)SHORT_BE.get(in, offset) : (short)SHORT_LE.get(in, offset));
+	}
+
+	/* interleaved samples to 16 bit bytes */
+	public static void toBytes16(short in[], int in_offset, byte out[], int out_offset, int samples, boolean big_endian) {
+		if(big_endian) {
+			for(int i = 0; i < samples; i++)
+				SHORT_BE.set(out, out_offset + i * 2, in[in_offset + i]);
+		} else {
+			for(int i = 0; i < samples; i++)
+				SHORT_LE.set(out, out_offset + i * 2, in[in_offset + i]);
+		}
+	}
+
+	/* 16 bit bytes to samples */
+	public static void fromBytes16(byte in[], int in_offset, short out[], int out_offset, int samples, boolean big_endian) {
+		if(big_endian) {
+			for(int i = 0; i < samples; i++)
+				out[out_offset + i] = (short)SHORT_BE.get(in, in_offset + i * 2);
+		} else {
+			for(int i = 0; i < samples; i++)
+				out[out_offset + i] = (short)SHORT_LE.get(in, in_offset + i * 2);
+		}
+	}
+
+	/* planar channels to interleaved 16 bit bytes; one channel after the
+	 * other, so every pass reads one array sequentially */
+	public static void interleave16(short in[][], int in_offset, byte out[], int out_offset, int channels, int frames, boolean big_endian) {
+		int stride = channels * 2;
+		for(int ch = 0; ch < channels; ch++) {
+			short samples[] = in[ch];
+			int p = out_offset + ch * 2;
+			if(big_endian) {
+				for(int i = 0; i < frames; i++, p += stride)
+					SHORT_BE.set(out, p, samples[in_offset + i]);
+			} else {
+				for(int i = 0; i < frames; i++, p += stride)
+					SHORT_LE.set(out, p, samples[in_offset + i]);
+			}
+		}
+	}
+
+	/* planar channels to interleaved samples */
+	public static void interleave(short in[][], int in_offset, short out[], int out_offset, int channels, int frames) {
+		if(channels == 1) {
+			System.arraycopy(in[0], in_offset, out, out_offset, frames);
+			return;
+		}
+		for(int ch = 0; ch < channels; ch++) {
+			short samples[] = in[ch];
+			for(int i = 0, p = out_offset + ch; i < frames; i++, p += channels)
+				out[p] = samples[in_offset + i];
+		}
+	}
+
+	/* interleaved samples to planar channels */
+	public static void deinterleave(short in[], int in_offset, short out[][], int out_offset, int channels, int frames) {
+		if(channels == 1) {
+			System.arraycopy(in, in_offset, out[0], out_offset, frames);
+			return;
+		}
+		for(int ch = 0; ch < channels; ch++) {
+			short samples[] = out[ch];
+			for(int i = 0, p = in_offset + ch; i < frames; i++, p += channels)
+				samples[out_offset + i] = in[p];
+		}
+	}
+
+	/* samples to floats in the range -1 to 1 */
+	public static void toFloat(short in[], int in_offset, float out[], int out_offset, int samples) {
+		for(int i = 0; i < samples; i++)
+			out[out_offset + i] = in[in_offset + i] * (1.0f / 32768.0f);
+	}
+
+	/* samples to 32 bit float bytes in the range -1 to 1 */
+	public static void toBytesFloat32(short in[], int in_offset, byte out[], int out_offset, int samples, boolean big_endian) {
+		if(big_endian) {
+			for(int i = 0; i < samples; i++)
+				FLOAT_BE.set(out, out_offset + i * 4, in[in_offset + i] * (1.0f / 32768.0f));
+		} else {
+			for(int i = 0; i < samples; i++)
+				FLOAT_LE.set(out, out_offset + i * 4, in[in_offset + i] * (1.0f / 32768.0f));
+		}
+	}
+
+	/* samples to 24 bit bytes, the low byte is zero */
+	public static void toBytes24(short in[], int in_offset, byte out[], int out_offset, int samples, boolean big_endian) {
+		int hi = big_endian ? 0 : 2;
+		int lo = big_endian ? 2 : 0;
+		for(int i = 0, p = out_offset; i < samples; i++, p += 3) {
+			int sample = in[in_offset + i];
+			out[p + hi] = (byte)(sample >> 8);
+			out[p + 1] = (byte)sample;
+			out[p + lo] = 0;
+		}
+	}
+
+	/* floats in the range -1 to 1 to 16 bit bytes, rounded and clamped */
+	public static void fromFloat16(float in[], int in_offset, byte out[], int out_offset, int samples, boolean big_endian) {
+		if(big_endian) {
+			for(int i = 0; i < samples; i++)
+				SHORT_BE.set(out, out_offset + i * 2, (short)clamp16(in[in_offset + i]));
+		} else {
+			for(int i = 0; i < samples; i++)
+				SHORT_LE.set(out, out_offset + i * 2, (short)clamp16(in[in_offset + i]));
+		}
+	}
+
+	/* writes interleaved samples at the position of a buffer in its byte
+	 * order and advances it; the buffer must have room for them */
+	public static void put(ByteBuffer dst, short in[], int in_offset, int samples) {
+		int position = dst.position();
+		if(dst.hasArray())
+			toBytes16(in, in_offset, dst.array(), dst.arrayOffset() + position, samples, dst.order() == ByteOrder.BIG_ENDIAN);
+		else
+			dst.asShortBuffer().put(in, in_offset, samples);
+		dst.position(position + samples * 2);
+	}
+
+	/* writes planar channels interleaved at the position of a buffer in its
+	 * byte order and advances it */
+	public static void put(ByteBuffer dst, short in[][], int in_offset, int channels, int frames) {
+		int position = dst.position();
+		if(dst.hasArray()) {
+			interleave16(in, in_offset, dst.array(), dst.arrayOffset() + position, channels, frames, dst.order() == ByteOrder.BIG_ENDIAN);
+			dst.position(position + frames * channels * 2);
+		} else {
+			for(int i = 0; i < frames; i++)
+				for(int ch = 0; ch < channels; ch++)
+					dst.putShort(in[ch][in_offset + i]);
+		}
+	}
+
+	/* writes planar channels interleaved at the position of a buffer and
+	 * advances it */
+	public static void put(ShortBuffer dst, short in[][], int in_offset, int channels, int frames) {
+		int position = dst.position();
+		if(dst.hasArray()) {
+			interleave(in, in_offset, dst.array(), dst.arrayOffset() + position, channels, frames);
+			dst.position(position + frames * channels);
+		} else {
+			for(int i = 0; i < frames; i++)
+				for(int ch = 0; ch < channels; ch++)
+					dst.put(in[ch][in_offset + i]);
+		}
+	}
+
+	/* a float in the range -1 to 1 as a 16 bit sample, rounded and clamped */
+	public static int clamp16(float sample) {
+		int value = Math.round(sample * 32768.0f);
+		if(value < -32768)
+			return(-32768);
+		if(value > 32767)
+			return(32767);
+		return(value);
+	}
+}
@@ -6,34 +6,15 @@ import java.io.IOException;
 import java.io.InputStream;
 import java.io.RandomAccessFile;
 
-public class RS03 implements Stream {
+public class RS03 extends InterleavedStream {
 	public final static int HEADER_SIZE = 0x60;
 
-	long	sample_count;
 	long	nibble_count;
-	long	sample_rate;
-	int	loop_flag;
 	long	loop_start_offset;
 	long	loop_end_offset;
-	long	channel_count;
-	int	coef[][]; /* really 8x2 */
-
-	InputData inputData;
-	long	startoffset;
-	long	filepos;
-	long	filesize;
-
-	long	current_sample;
-	long	current_byte;
-
-	long	interleave_block_size;
-	long	interleave_smallblock_size;
-
-	ADPCMDecoder decoder[];
 
 	public RS03(InputData file) throws FileFormatException, IOException {
-		this.inputData = file;
-		this.filesize = file.length();
+		super(file);
 		if(!readHeader())
 			throw new FileFormatException("not a RS03 file");
 		reset();
@@ -58,7 +39,7 @@ public class RS03 implements Stream {
 			return(false);
 
 		channel_count =
-			endianess.get_32bitBE(header, 0x04);
+			(int)endianess.get_32bitBE(header, 0x04);
 
 		sample_count =
 			endianess.get_32bitBE(header, 0x08);
@@ -73,8 +54,11 @@ public class RS03 implements Stream {
 		loop_end_offset =
 			endianess.get_32bitBE(header, 0x1C);
 
-		coef = new int[(int)channel_count][16];
-		byte[] buf = new byte[(int) (0x20 * channel_count)];
+		if(channel_count < 1)
+			return(false);
+
+		coef = new int[channel_count][16];
+		byte[] buf = new byte[0x20 * channel_count];
 		in.read(buf);
 		for(int c = 0; c < channel_count; c++)
 			for(int i = 0; i < 16; i++)
@@ -84,22 +68,20 @@ public class RS03 implements Stream {
 		return(true);
 	}
 
-	@Override
-	public long getSampleRate() {
-		return(sample_rate);
-	}
+	/* returns null if the data is not a RS03 file */
+	public static StreamInfo probe(InputData in) throws IOException, FileFormatException {
+		byte[] header = StreamInfo.tryRead(in, 0, 0x20);
+		if((header == null) || (endianess.get_32bitBE(header, 0x00) != 0x52530003))
+			return(null);
+		int channel_count = (int)endianess.get_32bitBE(header, 0x04);
+		if(channel_count < 1)
+			throw new FileFormatException("no channel");
 
-	@Override
-	public int getChannels() {
-		return((int)channel_count);
-	}
-
-	public long getInterleaveSize() {
-		return interleave_block_size;
-	}
-
-	public long getPreferedBufferSize() {
-		return getChannels() * (long)(getInterleaveSize() / 8.0 * 14.0);
+		long sample_count = endianess.get_32bitBE(header, 0x08);
+		long loop_start_sample = endianess.get_32bitBE(header, 0x18) / 8 * 14;
+		long loop_end_sample = Math.min(endianess.get_32bitBE(header, 0x1C) / 8 * 14, sample_count);
+		boolean loop = (endianess.get_16bitBE(header, 0x14) != 0) && (loop_start_sample < loop_end_sample);
+		return(new StreamInfo("RS03", endianess.get_32bitBE(header, 0x0C), channel_count, sample_count, loop, loop_start_sample, loop_end_sample, 0x8f00));
 	}
 
 	public boolean open(String filename, boolean resource) throws Exception {
@@ -110,121 +92,38 @@ public class RS03 implements Stream {
 		else
 			inputData = InputData.getInputData(this.getClass().getResourceAsStream(filename));
 		filesize = inputData.length();
-		return readHeader();
+		if(!readHeader())
+			return(false);
+		reset();
+		return(true);
 	}
 
-	private boolean readHeader() throws IOException {
-		seek(0);
-		startoffset = 0x20;
+	private boolean readHeader() throws IOException, FileFormatException {
+		inputData.seek(0);
+		start_offset = 0x20;
 
 		byte[] header = new byte[0x20];
 		inputData.read(header);
 		if(!read_dsp_header(header, inputData))
 			return(false);
 
-		startoffset += 0x20 * channel_count;
+		start_offset += 0x20 * channel_count;
 
-		interleave_block_size = 0x8f00;
-		interleave_smallblock_size = (((filesize - startoffset) % (0x8f00 * 2)) / 2 + 7) / 8 * 8;
+		/* loop points are stored as byte offsets into the channel data */
+		loop_start_sample = loop_start_offset / 8 * 14;
+		loop_end_sample = loop_end_offset / 8 * 14;
 
-		decoder = new ADPCMDecoder[(int)channel_count];
-		for(int i = 0; i < channel_count; i++) {
-			decoder[i] = new ADPCMDecoder();
-			decoder[i].setCoef(coef[i]);
-			decoder[i].setHistory(0, 0);
-		}
+		interleave_block_size = 0x8f00;
+		if(filesize >= 0)
+			interleave_smallblock_size = (((filesize - start_offset) % (0x8f00 * channel_count)) / channel_count + 7) / 8 * 8;
+		else /* length unknown on a forward-only input, the channels are as long as the samples need */
+			interleave_smallblock_size = ((sample_count + 13) / 14 * 8) % 0x8f00;
 
-		filepos = startoffset;
-		current_sample = 0;
-		current_byte = 0;
+		buildIndex();
 
 		return(true);
 	}
 
-	@Override
-	public void close() throws Exception {
-		inputData.close();
-	}
-
-	@Override
-	public boolean hasMoreData() {
-		return((loop_flag != 0) || (filepos < filesize));
-	}
-
-	private void seek(long pos) throws IOException {
-		inputData.seek(startoffset + pos);
-		filepos = startoffset + pos;
-	}
-
-	public void reset() throws IOException {
-		seek(0);
-		for(int i = 0; i < channel_count; i++)
-			decoder[i].setHistory(0, 0);
-	}
-
-	private int[] doDecode() throws Exception {
-		long start_offset = current_byte;
-		if((loop_flag != 0) && (current_byte >= loop_end_offset))
-			start_offset = loop_start_offset;
-		long blocks = start_offset / interleave_block_size;
-		if((loop_flag != 0) && (current_byte >= loop_end_offset))
-			current_byte = blocks * interleave_block_size;
-		else
-			current_byte = start_offset;
-		seek(blocks * interleave_block_size * channel_count);
-
-		start_offset = start_offset - (blocks * interleave_block_size);
-		start_offset = (start_offset / 8) * 8;
-		int startsample = (int)(start_offset / 8.0 * 14.0);
-
-		long interleave = interleave_block_size;
-		if((filesize - filepos) < (interleave_block_size * channel_count))
-			interleave = interleave_smallblock_size;
-
-		long end_offset = current_byte + interleave;
-		if((loop_flag != 0) && ((current_byte + interleave) > loop_end_offset))
-			end_offset = loop_end_offset;
-
-		int endsample = (int)((end_offset - current_byte) / 8.0 * 14.0);
-
-		byte[] rawdata = new byte[(int)(interleave * channel_count)];
-		int samplecnt = endsample - startsample;
-		if(samplecnt < 0)
-			samplecnt = 0;
-		int[] samples = new int[(int)(samplecnt * channel_count)];
-		int read = inputData.read(rawdata);
-		filepos += read;
-		current_byte += read / channel_count;
-		for(int ch = 0; ch < channel_count; ch++) {
-			for(int i = 0; i < samplecnt; i += 14) {
-				int samplestodo = samplecnt - i;
-				if(samplestodo > 14)
-					samplestodo = 14;
-				int[] buf = decoder[ch].decode_ngc_dsp((int)(interleave * ch), startsample + i, samplestodo, rawdata);
-				for(int x = 0; x < buf.length; x++)
-					samples[(int)((i + x) * channel_count + ch)] = buf[x];
-			}
-		}
-		return samples;
-	}
-
-	@Override
-	public byte[] decode() throws Exception {
-		int[] samples = doDecode();
-		byte[] buffer = new byte[samples.length * 2];
-		for(int i = 0; i < samples.length; i++)
-			endianess.set16bit_BE(samples[i], buffer, i * 2);
-		return(buffer);
-	}
-
-	public short[] decode16() throws Exception {
-		int[] samples = doDecode();
-		short[] buffer = new short[samples.length];
-		for(int i = 0; i < samples.length; i++)
-			buffer[i] = (short) samples[i];
-		return(buffer);
-	}
-
 	@Override
 	public String toString() {
 		return(new String("RS03[" + sample_rate + "Hz,16bit," + sample_count + " samples,loop:" + ((loop_flag != 0) ? "yes" : "no") + "," + channel_count + "ch]"));
@@ -0,0 +1,370 @@
+package org.hackyourlife.gcn.dsp;
+
+import org.hackyourlife.gcn.dsp.input.InputData;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ShortBuffer;
+import java.util.Arrays;
+import java.util.Map;
+import java.util.TreeMap;
+
+/* keeps many short sounds resident as ADPCM in one direct buffer; every sound
+ * stores its coefficients followed by the frames of each channel, one channel
+ * after the other. Voices decode straight from that buffer, so a loaded bank
+ * holds no file handles and costs one allocation. */
+public class SoundBank {
+	/* frames handed out per decode call of a voice */
+	public final static int VOICE_BLOCK_FRAMES = 14 * 64;
+
+	private final ByteBuffer arena;
+
+	/* lookup table, sorted by id */
+	private final int	ids[];
+	private final int	coef_offset[];
+	private final int	data_offset[];
+	private final int	channel_size[];
+	private final int	channels[];
+	private final long	sample_count[];
+	private final long	sample_rate[];
+	private final boolean	loop[];
+	private final long	loop_start_sample[];
+	private final long	loop_end_sample[];
+	private final int	hist1[];
+	private final int	hist2[];
+	private int		max_channels;
+
+	/* the inputs are read completely and closed; DSP, BRSTM, BFSTM and RS03
+	 * are accepted */
+	public SoundBank(Map<Integer, InputData> sources) throws IOException, FileFormatException {
+		TreeMap<Integer, InputData> sorted = new TreeMap<>(sources);
+		int count = sorted.size();
+		ids = new int[count];
+		coef_offset = new int[count];
+		data_offset = new int[count];
+		channel_size = new int[count];
+		channels = new int[count];
+		sample_count = new long[count];
+		sample_rate = new long[count];
+		loop = new boolean[count];
+		loop_start_sample = new long[count];
+		loop_end_sample = new long[count];
+		hist1 = new int[count];
+		hist2 = new int[count];
+
+		/* parse every header first so the arena is allocated once at its final size */
+		Stream streams[] = new Stream[count];
+		long size = 0;
+		try {
+			int n = 0;
+			for(Map.Entry<Integer, InputData> source : sorted.entrySet()) {
+				streams[n] = open(source.getValue());
+				ids[n] = source.getKey();
+				size += describe(n, streams[n], size);
+				n++;
+			}
+			if(size > Integer.MAX_VALUE)
+				throw new FileFormatException("sound bank too large");
+
+			arena = ByteBuffer.allocateDirect((int)size);
+			for(int i = 0; i < count; i++)
+				copy(i, streams[i]);
+		} finally {
+			for(Map.Entry<Integer, InputData> source : sorted.entrySet())
+				source.getValue().close();
+		}
+	}
+
+	private static Stream open(InputData in) throws IOException, FileFormatException {
+		StreamInfo info = StreamInfo.probe(in);
+		switch(info.getFormat()) {
+			case "BRSTM":
+				return(new BRSTM(in));
+			case "BFSTM":
+				return(new BFSTM(in));
+			case "RS03":
+				return(new RS03(in));
+			default:
+				return(new DSP(in));
+		}
+	}
+
+	/* fills the table entry and returns the bytes the sound takes in the arena */
+	private long describe(int n, Stream stream, long offset) {
+		int channel_count = stream.getChannels();
+		long samples;
+		if(stream instanceof InterleavedStream) {
+			InterleavedStream s = (InterleavedStream)stream;
+			samples = s.index.getSampleCount();
+			loop[n] = s.loop_flag != 0;
+			loop_start_sample[n] = s.loop_start_sample;
+			loop_end_sample[n] = s.loop_end_sample;
+		} else {
+			DSP s = (DSP)stream;
+			samples = Math.min(s.sample_count, (s.filesize - s.startoffset) / 8 * 14);
+			loop[n] = s.loop_flag != 0;
+			loop_start_sample[n] = s.loop_start_offset / 8 * 14;
+			loop_end_sample[n] = Math.min(s.loop_end_offset / 8 * 14, samples);
+			hist1[n] = s.initial_hist1;
+			hist2[n] = s.initial_hist2;
+			if(loop_start_sample[n] >= loop_end_sample[n])
+				loop[n] = false;
+		}
+		long bytes = (samples + 13) / 14 * 8;
+		channels[n] = channel_count;
+		max_channels = Math.max(max_channels, channel_count);
+		sample_count[n] = samples;
+		sample_rate[n] = stream.getSampleRate();
+		channel_size[n] = (int)bytes;
+		coef_offset[n] = (int)offset;
+		data_offset[n] = (int)(offset + 32 * channel_count);
+		return(32 * channel_count + bytes * channel_count);
+	}
+
+	private void copy(int n, Stream stream) throws IOException {
+		int coef[][];
+		if(stream instanceof InterleavedStream) {
+			InterleavedStream s = (InterleavedStream)stream;
+			coef = s.coef;
+			BlockIndex index = s.index;
+			byte block[] = new byte[index.getMaxLength()];
+			long block_size = s.interleave_block_size;
+			for(int b = 0; b < index.getBlockCount(); b++) {
+				int size = index.getSize(b);
+				int read = s.inputData.read(index.getOffset(b), block, 0, index.getLength(b));
+				if(read < index.getLength(b))
+					Arrays.fill(block, Math.max(read, 0), index.getLength(b), (byte)0);
+				int length = (int)Math.min(size, channel_size[n] - b * block_size);
+				for(int ch = 0; ch < channels[n]; ch++)
+					arena.put(data_offset[n] + ch * channel_size[n] + (int)(b * block_size), block, ch * size, length);
+			}
+		} else {
+			DSP s = (DSP)stream;
+			coef = new int[][] { s.coef };
+			byte data[] = new byte[channel_size[n]];
+			int read = s.inputData.read(s.startoffset, data, 0, data.length);
+			if(read < data.length)
+				Arrays.fill(data, Math.max(read, 0), data.length, (byte)0);
+			arena.put(data_offset[n], data);
+		}
+		for(int ch = 0; ch < channels[n]; ch++)
+			for(int i = 0; i < 16; i++)
+				arena.putShort(coef_offset[n] + ch * 32 + i * 2, (short)coef[ch][i]);
+	}
+
+	private int slot(int id) {
+		int n = Arrays.binarySearch(ids, id);
+		if(n < 0)
+			throw new IllegalArgumentException("unknown sound " + id);
+		return(n);
+	}
+
+	public boolean contains(int id) {
+		return(Arrays.binarySearch(ids, id) >= 0);
+	}
+
+	public int[] getIds() {
+		return(ids.clone());
+	}
+
+	public int size() {
+		return(ids.length);
+	}
+
+	/* bytes of ADPCM data and coefficients held off-heap */
+	public int getArenaSize() {
+		return(arena.capacity());
+	}
+
+	public int getChannels(int id) {
+		return(channels[slot(id)]);
+	}
+
+	public long getSampleCount(int id) {
+		return(sample_count[slot(id)]);
+	}
+
+	public long getSampleRate(int id) {
+		return(sample_rate[slot(id)]);
+	}
+
+	/* the most channels of any sound */
+	public int getMaxChannels() {
+		return(max_channels);
+	}
+
+	/* index of the sound in getIds(), -1 if the bank does not contain it */
+	public int indexOf(int id) {
+		return(Math.max(Arrays.binarySearch(ids, id), -1));
+	}
+
+	/* creates a new playback of the sound; voices of one bank may be used
+	 * from different threads at the same time */
+	public Voice open(int id) {
+		return(new Voice(slot(id)));
+	}
+
+	public class Voice implements Stream {
+		private int		n;
+		/* sized for the sound with the most channels, so setSound() never allocates */
+		private final ADPCMDecoder decoder[];
+		private final int	coef[][];
+		private final byte	scratch[];
+		private short		pcm[][];
+		private long		position;
+
+		private Voice(int n) {
+			decoder = new ADPCMDecoder[max_channels];
+			coef = new int[max_channels][16];
+			for(int ch = 0; ch < max_channels; ch++) {
+				decoder[ch] = new ADPCMDecoder();
+				decoder[ch].setCoef(coef[ch]);
+			}
+			scratch = new byte[(VOICE_BLOCK_FRAMES / 14 + 1) * 8];
+			load(n);
+		}
+
+		private void load(int n) {
+			this.n = n;
+			for(int ch = 0; ch < channels[n]; ch++)
+				for(int i = 0; i < 16; i++)
+					coef[ch][i] = arena.getShort(coef_offset[n] + ch * 32 + i * 2);
+			rewind();
+		}
+
+		/* switches the voice to another sound of the bank and rewinds it,
+		 * without allocating */
+		public void setSound(int id) {
+			load(slot(id));
+		}
+
+		/* restarts the sound from the beginning */
+		public void rewind() {
+			position = 0;
+			for(int ch = 0; ch < channels[n]; ch++)
+				decoder[ch].setHistory(hist1[n], hist2[n]);
+		}
+
+		public int getId() {
+			return(ids[n]);
+		}
+
+		@Override
+		public boolean hasMoreData() {
+			return(loop[n] || (position < sample_count[n]));
+		}
+
+		@Override
+		public int getChannels() {
+			return(channels[n]);
+		}
+
+		@Override
+		public long getSampleRate() {
+			return(sample_rate[n]);
+		}
+
+		@Override
+		public int getMaxBlockFrames() {
+			return(VOICE_BLOCK_FRAMES);
+		}
+
+		@Override
+		public long getRemainingFrames() {
+			if(loop[n])
+				return(-1);
+			return(Math.max(sample_count[n] - position, 0));
+		}
+
+		@Override
+		public long getLoopStartSample() {
+			return(loop[n] ? loop_start_sample[n] / 14 * 14 : -1);
+		}
+
+		@Override
+		public long getLoopEndSample() {
+			return(loop[n] ? loop_end_sample[n] : -1);
+		}
+
+		/* the arena belongs to the bank, nothing to release */
+		@Override
+		public void close() {
+		}
+
+		@Override
+		public int decodePlanar(short[][] dst) {
+			return(decode(dst, dst[0].length));
+		}
+
+		private int decode(short[][] dst, int max) {
+			long end = loop[n] ? loop_end_sample[n] : sample_count[n];
+			if(loop[n] && (position >= end))
+				position = loop_start_sample[n] / 14 * 14;
+			int samples = (int)Math.min(Math.min(end - position, max), VOICE_BLOCK_FRAMES);
+			if(samples <= 0)
+				return(0);
+
+			int first = (int)(position % 14);
+			long frame = position / 14;
+			int bytes = (first + samples + 13) / 14 * 8;
+			for(int ch = 0; ch < channels[n]; ch++) {
+				arena.get(data_offset[n] + ch * channel_size[n] + (int)(frame * 8), scratch, 0, bytes);
+				decoder[ch].decode_ngc_dsp(scratch, 0, first, samples, dst[ch], 0, 1);
+			}
+			position += samples;
+			return(samples);
+		}
+
+		@Override
+		public int decodePlanar(float[][] dst) {
+			short[][] pcm = planar();
+			int samples = decode(pcm, dst[0].length);
+			for(int ch = 0; ch < channels[n]; ch++) {
+				float[] out = dst[ch];
+				short[] in = pcm[ch];
+				for(int i = 0; i < samples; i++)
+					out[i] = in[i] * (1.0f / 32768.0f);
+			}
+			return(samples);
+		}
+
+		@Override
+		public byte[] decode() {
+			short[][] pcm = planar();
+			int samples = decodePlanar(pcm);
+			int channel_count = channels[n];
+			byte[] buffer = new byte[samples * channel_count * 2];
+			PCM.interleave16(pcm, 0, buffer, 0, channel_count, samples, true);
+			return(buffer);
+		}
+
+		@Override
+		public int decode(ShortBuffer dst) {
+			short[][] pcm = planar();
+			int channel_count = channels[n];
+			int samples = decode(pcm, dst.remaining() / channel_count);
+			PCM.put(dst, pcm, 0, channel_count, samples);
+			return(samples);
+		}
+
+		@Override
+		public int decode(ByteBuffer dst) {
+			short[][] pcm = planar();
+			int channel_count = channels[n];
+			int samples = decode(pcm, dst.remaining() / (2 * channel_count));
+			PCM.put(dst, pcm, 0, channel_count, samples);
+			return(samples);
+		}
+
+		private short[][] planar() {
+			if(pcm == null)
+				pcm = new short[max_channels][VOICE_BLOCK_FRAMES];
+			return(pcm);
+		}
+
+		@Override
+		public String toString() {
+			return(new String("Voice[" + ids[n] + "," + sample_rate[n] + "Hz,16bit," + sample_count[n] + " samples,loop:" + (loop[n] ? "yes" : "no") + "," + channels[n] + "ch]"));
+		}
+	}
+}
@@ -1,9 +1,109 @@
 package org.hackyourlife.gcn.dsp;
 
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.ShortBuffer;
+
 public interface Stream {
 	public boolean hasMoreData();
 	public byte[] decode() throws Exception;
 	public int getChannels();
 	public long getSampleRate();
 	public void close() throws Exception;
+
+	/* returned by getMaxBlockFrames() of streams that do not know their block
+	 * size; larger than the blocks of all formats of this package */
+	public final static int DEFAULT_MAX_BLOCK_FRAMES = 1 << 16;
+
+	/* upper bound of the frames (samples per channel) returned by one decode
+	 * call; streams that do not override it return DEFAULT_MAX_BLOCK_FRAMES */
+	public default int getMaxBlockFrames() {
+		return(DEFAULT_MAX_BLOCK_FRAMES);
+	}
+
+	/* frames left until the end of the stream, -1 if it loops or is unknown */
+	public default long getRemainingFrames() {
+		return(-1);
+	}
+
+	/* first sample played again when the loop end is reached, -1 if the
+	 * stream does not loop */
+	public default long getLoopStartSample() {
+		return(-1);
+	}
+
+	/* sample at which playback continues at getLoopStartSample() */
+	public default long getLoopEndSample() {
+		return(-1);
+	}
+
+	/* track table of the stream, null if the container has none */
+	public default TrackInfo[] getTracks() {
+		return(null);
+	}
+
+	/* decodes the next block into one array per channel and returns the amount
+	 * of frames written; dst[ch] must hold getMaxBlockFrames() samples */
+	public default int decodePlanar(short[][] dst) throws Exception {
+		byte[] data = decode();
+		int channels = getChannels();
+		int frames = data.length / (2 * channels);
+		if(frames > dst[0].length)
+			throw new IllegalArgumentException("buffer too small for " + frames + " frames");
+		for(int ch = 0; ch < channels; ch++) {
+			short[] out = dst[ch];
+			for(int i = 0, p = ch * 2; i < frames; i++, p += channels * 2)
+				out[i] = PCM.get16(data, p, true);
+		}
+		return(frames);
+	}
+
+	/* same as decodePlanar(short[][]) with samples normalized to [-1, 1) */
+	public default int decodePlanar(float[][] dst) throws Exception {
+		byte[] data = decode();
+		int channels = getChannels();
+		int frames = data.length / (2 * channels);
+		if(frames > dst[0].length)
+			throw new IllegalArgumentException("buffer too small for " + frames + " frames");
+		for(int ch = 0; ch < channels; ch++) {
+			float[] out = dst[ch];
+			for(int i = 0, p = ch * 2; i < frames; i++, p += channels * 2)
+				out[i] = PCM.get16(data, p, true) * (1.0f / 32768.0f);
+		}
+		return(frames);
+	}
+
+	/* decodes the next block as interleaved samples into dst, starting at its
+	 * position, and returns the amount of frames written. At most as many
+	 * frames as fit into dst.remaining() are decoded; implementations of this
+	 * package do not allocate here once they are running. */
+	public default int decode(ShortBuffer dst) throws Exception {
+		byte[] data = decode();
+		int samples = data.length / 2;
+		if(samples > dst.remaining())
+			throw new IllegalArgumentException("buffer too small for " + samples + " samples");
+		if(dst.hasArray()) {
+			PCM.fromBytes16(data, 0, dst.array(), dst.arrayOffset() + dst.position(), samples, true);
+			dst.position(dst.position() + samples);
+		} else {
+			for(int i = 0; i < samples; i++)
+				dst.put(PCM.get16(data, i * 2, true));
+		}
+		return(samples / getChannels());
+	}
+
+	/* same as decode(ShortBuffer) with 16 bit samples in the byte order of dst */
+	public default int decode(ByteBuffer dst) throws Exception {
+		byte[] data = decode();
+		int samples = data.length / 2;
+		if(samples * 2 > dst.remaining())
+			throw new IllegalArgumentException("buffer too small for " + samples + " samples");
+		if(dst.order() == ByteOrder.BIG_ENDIAN) {
+			dst.put(data);
+		} else {
+			for(int i = 0; i < samples; i++)
+				dst.putShort(PCM.get16(data, i * 2, true));
+		}
+		return(samples / getChannels());
+	}
 }
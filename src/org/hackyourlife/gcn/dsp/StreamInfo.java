@@ -0,0 +1,103 @@
+package org.hackyourlife.gcn.dsp;
+
+import org.hackyourlife.gcn.dsp.input.InputData;
+
+import java.io.IOException;
+
+/* immutable stream metadata read from the header alone; probing never reads
+ * sample data or creates decoders, so it is cheap enough to run over a whole
+ * library */
+public final class StreamInfo {
+	private final String	format;
+	private final long	sample_rate;
+	private final int	channel_count;
+	private final long	sample_count;
+	private final boolean	loop;
+	private final long	loop_start_sample;
+	private final long	loop_end_sample;
+	private final long	interleave_block_size;
+
+	public StreamInfo(String format, long sample_rate, int channel_count, long sample_count, boolean loop, long loop_start_sample, long loop_end_sample, long interleave_block_size) {
+		this.format = format;
+		this.sample_rate = sample_rate;
+		this.channel_count = channel_count;
+		this.sample_count = sample_count;
+		this.loop = loop;
+		this.loop_start_sample = loop_start_sample;
+		this.loop_end_sample = loop_end_sample;
+		this.interleave_block_size = interleave_block_size;
+	}
+
+	/* detects the container from its magic; DSP has none, so it is tried last */
+	public static StreamInfo probe(InputData in) throws IOException, FileFormatException {
+		StreamInfo info = BRSTM.probe(in);
+		if(info == null)
+			info = BFSTM.probe(in);
+		if(info == null)
+			info = RS03.probe(in);
+		if(info == null)
+			info = DSP.probe(in);
+		if(info == null)
+			throw new FileFormatException("unknown format");
+		return(info);
+	}
+
+	/* reads len header bytes at pos, failing on a truncated file */
+	static byte[] read(InputData in, long pos, int len) throws IOException, FileFormatException {
+		byte[] data = new byte[len];
+		if((pos < 0) || (in.read(pos, data, 0, len) < len))
+			throw new FileFormatException("truncated header");
+		return(data);
+	}
+
+	/* like read(), but returns null instead of failing; used for the magic */
+	static byte[] tryRead(InputData in, long pos, int len) throws IOException {
+		byte[] data = new byte[len];
+		if(in.read(pos, data, 0, len) < len)
+			return(null);
+		return(data);
+	}
+
+	/* container name, e.g. "BRSTM" */
+	public String getFormat() {
+		return(format);
+	}
+
+	public long getSampleRate() {
+		return(sample_rate);
+	}
+
+	public int getChannels() {
+		return(channel_count);
+	}
+
+	public long getSampleCount() {
+		return(sample_count);
+	}
+
+	public double getDuration() {
+		return((double)sample_count / sample_rate);
+	}
+
+	public boolean isLooping() {
+		return(loop);
+	}
+
+	public long getLoopStartSample() {
+		return(loop_start_sample);
+	}
+
+	public long getLoopEndSample() {
+		return(loop_end_sample);
+	}
+
+	/* bytes per channel and block, 0 for formats that are not interleaved */
+	public long getInterleaveSize() {
+		return(interleave_block_size);
+	}
+
+	@Override
+	public String toString() {
+		return(format + "[" + sample_rate + "Hz," + sample_count + " samples,loop:" + (loop ? loop_start_sample + "-" + loop_end_sample : "no") + "," + channel_count + "ch]");
+	}
+}
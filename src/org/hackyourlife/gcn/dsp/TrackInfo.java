@@ -0,0 +1,59 @@
+package org.hackyourlife.gcn.dsp;
+
+import java.util.Arrays;
+
+/* one entry of a track table: a group of channels played together, with the
+ * volume and pan the game mixes it at (both 0-127, pan 64 is the center) */
+public class TrackInfo {
+	public final static int VOLUME_MAX = 127;
+	public final static int PAN_CENTER = 64;
+
+	private final int	volume;
+	private final int	pan;
+	private final int	channels[];
+
+	public TrackInfo(int volume, int pan, int[] channels) {
+		this.volume = volume;
+		this.pan = pan;
+		this.channels = channels.clone();
+	}
+
+	/* the default layout without a track table: one stereo track per channel
+	 * pair, a mono track for an odd last channel */
+	public static TrackInfo[] pairs(int channel_count) {
+		TrackInfo tracks[] = new TrackInfo[(channel_count + 1) / 2];
+		for(int t = 0; t < tracks.length; t++) {
+			int channels[] = new int[Math.min(2, channel_count - t * 2)];
+			for(int c = 0; c < channels.length; c++)
+				channels[c] = t * 2 + c;
+			tracks[t] = new TrackInfo(VOLUME_MAX, PAN_CENTER, channels);
+		}
+		return(tracks);
+	}
+
+	public int getVolume() {
+		return(volume);
+	}
+
+	public int getPan() {
+		return(pan);
+	}
+
+	public int getChannelCount() {
+		return(channels.length);
+	}
+
+	/* index of the n-th channel of the track in the stream */
+	public int getChannel(int n) {
+		return(channels[n]);
+	}
+
+	public int[] getChannels() {
+		return(channels.clone());
+	}
+
+	@Override
+	public String toString() {
+		return(new String("Track[volume:" + volume + ",pan:" + pan + ",channels:" + Arrays.toString(channels) + "]"));
+	}
+}
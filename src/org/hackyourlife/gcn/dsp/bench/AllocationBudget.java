@@ -0,0 +1,183 @@
+package org.hackyourlife.gcn.dsp.bench;
+
+import org.hackyourlife.gcn.dsp.AsyncDecoder;
+import org.hackyourlife.gcn.dsp.BFSTM;
+import org.hackyourlife.gcn.dsp.BRSTM;
+import org.hackyourlife.gcn.dsp.DSP;
+import org.hackyourlife.gcn.dsp.RS03;
+import org.hackyourlife.gcn.dsp.Stream;
+import org.hackyourlife.gcn.dsp.input.InputData;
+import org.hackyourlife.gcn.dsp.player.BrstmPlayer;
+import org.hackyourlife.gcn.dsp.player.NullSink;
+
+import java.lang.management.ManagementFactory;
+import java.nio.ShortBuffer;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Checks that decoding and playback stay within a budget of heap allocation per second of audio.
+ * Every format is run on synthetic looping assets through three paths: {@link Stream#decode(ShortBuffer)}
+ * on the calling thread, the same through an {@link AsyncDecoder}, and a {@link BrstmPlayer} writing
+ * to a {@link NullSink}. Every format and channel count has its own budget per path. Prints one
+ * table row per format, channel count and path and exits with status 1 if any row is over its
+ * budget.
+ *
+ * <p>Usage: {@code AllocationBudget [seconds of audio per row]}</p>
+ */
+public class AllocationBudget {
+
+    /** Paths of every case, in the order of the budgets */
+    private static final String[] PATHS = {"decode", "async", "player"};
+
+    private interface Opener {
+        Stream open() throws Exception;
+    }
+
+    private static class Case {
+        private final String format;
+        private final int channels;
+        /** Bytes per second of decoded audio for each of {@link #PATHS} */
+        private final long[] budgets;
+        private final Opener opener;
+
+        private Case(String format, int channels, long decodeBudget, long asyncBudget, long playerBudget, Opener opener) {
+            this.format = format;
+            this.channels = channels;
+            this.budgets = new long[]{decodeBudget, asyncBudget, playerBudget};
+            this.opener = opener;
+        }
+    }
+
+    private static final com.sun.management.ThreadMXBean THREADS = (com.sun.management.ThreadMXBean) ManagementFactory.getThreadMXBean();
+
+    public static void main(String[] args) throws Exception {
+        int seconds = args.length > 0 ? Integer.parseInt(args[0]) : 10;
+        if (!THREADS.isThreadAllocatedMemorySupported()) {
+            System.err.println("Thread allocation accounting is not supported by this JVM");
+            System.exit(2);
+        }
+        THREADS.setThreadAllocatedMemoryEnabled(true);
+
+        // long enough that the loop is crossed several times per row
+        int samples = SyntheticAssets.SAMPLE_RATE * 4;
+        byte[] brstm1 = new SyntheticAssets(1).brstm(1, samples, true);
+        byte[] brstm2 = new SyntheticAssets(2).brstm(2, samples, true);
+        byte[] brstm4 = new SyntheticAssets(4).brstm(4, samples, true);
+        byte[] bfstm2 = new SyntheticAssets(2).bfstm(2, samples, true, true);
+        byte[] bfstm6 = new SyntheticAssets(6).bfstm(6, samples, true, false);
+        byte[] rs03 = new SyntheticAssets(3).rs03(2, samples, true);
+        byte[] left = new SyntheticAssets(4).dsp(samples, true);
+        byte[] right = new SyntheticAssets(5).dsp(samples, true);
+
+        // the player path adds the mixer, resampler and sink thread; split DSP files have a
+        // decoder and a read per file
+        List<Case> cases = new ArrayList<>();
+        cases.add(new Case("BRSTM", 1, 512, 512, 4 * 1024, () -> new BRSTM(InputData.getInputData(brstm1))));
+        cases.add(new Case("BRSTM", 2, 512, 512, 4 * 1024, () -> new BRSTM(InputData.getInputData(brstm2))));
+        cases.add(new Case("BRSTM", 4, 512, 512, 6 * 1024, () -> new BRSTM(InputData.getInputData(brstm4))));
+        cases.add(new Case("BFSTM", 2, 512, 512, 4 * 1024, () -> new BFSTM(InputData.getInputData(bfstm2))));
+        cases.add(new Case("BFSTM", 6, 512, 512, 8 * 1024, () -> new BFSTM(InputData.getInputData(bfstm6))));
+        cases.add(new Case("RS03", 2, 512, 512, 4 * 1024, () -> new RS03(InputData.getInputData(rs03))));
+        cases.add(new Case("DSP", 1, 512, 512, 4 * 1024, () -> new DSP(InputData.getInputData(left))));
+        cases.add(new Case("DSP", 2, 1024, 1024, 8 * 1024, () -> new DSP(InputData.getInputData(left), InputData.getInputData(right))));
+
+        System.out.printf("%-6s %3s %-7s %12s %12s  %s%n", "format", "ch", "path", "bytes/s", "budget", "result");
+        boolean failed = false;
+        for (Case entry : cases) {
+            failed |= report(entry, 0, measureDecode(entry.opener.open(), seconds, false));
+            failed |= report(entry, 1, measureDecode(entry.opener.open(), seconds, true));
+            failed |= report(entry, 2, measurePlayer(entry.opener.open(), seconds));
+        }
+        System.exit(failed ? 1 : 0);
+    }
+
+    private static boolean report(Case entry, int path, long bytesPerSecond) {
+        long budget = entry.budgets[path];
+        boolean over = bytesPerSecond > budget;
+        System.out.printf("%-6s %3d %-7s %12d %12d  %s%n", entry.format, entry.channels, PATHS[path], bytesPerSecond, budget, over ? "FAIL" : "ok");
+        return over;
+    }
+
+    private static long allocated(long[] threads) {
+        long sum = 0;
+        for (long bytes : THREADS.getThreadAllocatedBytes(threads)) {
+            if (bytes > 0)
+                sum += bytes;
+        }
+        return sum;
+    }
+
+    /**
+     * @return Frames to play before measuring: a second, or three blocks of large-block
+     *         formats so buffers that grow to the block size have done so
+     */
+    private static long warmup(Stream stream, long rate) {
+        return Math.max(rate, 3L * stream.getMaxBlockFrames() * rate / stream.getSampleRate());
+    }
+
+    /**
+     * Decodes a warm-up period, then {@code seconds} of audio while counting allocations
+     *
+     * @return Bytes allocated per second of audio
+     */
+    private static long measureDecode(Stream stream, int seconds, boolean async) throws Exception {
+        long[] threads = {Thread.currentThread().getId()};
+        if (async) {
+            AsyncDecoder decoder = new AsyncDecoder(stream);
+            decoder.setDaemon(true);
+            decoder.start();
+            threads = new long[]{Thread.currentThread().getId(), decoder.getId()};
+            stream = decoder;
+        }
+
+        ShortBuffer buffer = ShortBuffer.allocate(stream.getMaxBlockFrames() * stream.getChannels());
+        long rate = stream.getSampleRate();
+        decode(stream, buffer, warmup(stream, rate));
+
+        long before = allocated(threads);
+        decode(stream, buffer, rate * seconds);
+        long after = allocated(threads);
+        stream.close();
+        return (after - before) / seconds;
+    }
+
+    private static void decode(Stream stream, ShortBuffer buffer, long frames) throws Exception {
+        long done = 0;
+        while (done < frames && stream.hasMoreData()) {
+            buffer.clear();
+            done += stream.decode(buffer);
+        }
+    }
+
+    /**
+     * Plays into a {@link NullSink} as fast as it accepts data; allocations of all threads are
+     * counted, which covers the playback and the decoder thread
+     *
+     * @return Bytes allocated per second of output audio
+     */
+    private static long measurePlayer(Stream stream, int seconds) throws Exception {
+        NullSink sink = new NullSink();
+        BrstmPlayer player = new BrstmPlayer(stream);
+        player.setAudioSink(sink);
+        player.setOutputSampleRate(48000);
+        player.start();
+
+        long rate = 48000;
+        waitForFrames(sink, warmup(stream, rate));
+        long[] threads = THREADS.getAllThreadIds();
+        long before = allocated(threads);
+        long start = sink.getFramesWritten();
+        waitForFrames(sink, start + rate * seconds);
+        long after = allocated(threads);
+        long frames = sink.getFramesWritten() - start;
+        player.stop();
+        stream.close();
+        return (after - before) * rate / Math.max(frames, 1);
+    }
+
+    private static void waitForFrames(NullSink sink, long frames) throws InterruptedException {
+        while (sink.getFramesWritten() < frames)
+            Thread.sleep(1);
+    }
+}
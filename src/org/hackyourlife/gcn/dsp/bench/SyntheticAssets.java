@@ -0,0 +1,214 @@
+package org.hackyourlife.gcn.dsp.bench;
+
+import org.hackyourlife.gcn.dsp.ADPCMDecoder;
+
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.util.Random;
+
+/**
+ * Builds small but valid files of every supported container in memory, filled with random
+ * ADPCM frames, so the decode and playback paths can be exercised without asset files.
+ * All files are 32000 Hz, loops (if any) start after the first second.
+ */
+public class SyntheticAssets {
+
+    public static final int SAMPLE_RATE = 32000;
+
+    private static final int BLOCK_SIZE = 0x2000;
+    private static final int RS03_BLOCK_SIZE = 0x8f00;
+
+    private final Random random;
+
+    public SyntheticAssets(long seed) {
+        this.random = new Random(seed);
+    }
+
+    private static int frames(int samples) {
+        return (samples + 13) / 14;
+    }
+
+    private void adpcm(ByteBuffer out, int bytes) {
+        for (int i = 0; i < bytes / 8; i++) {
+            // predictor 0-7, scale 0-11
+            out.put((byte) ((this.random.nextInt(8) << 4) | this.random.nextInt(12)));
+            for (int j = 0; j < 7; j++)
+                out.put((byte) this.random.nextInt(256));
+        }
+    }
+
+    private void coefs(ByteBuffer out) {
+        for (int i = 0; i < 16; i++)
+            out.putShort((short) (this.random.nextInt(4096) - 2048));
+    }
+
+    private static int loopStart(boolean loop) {
+        return loop ? SAMPLE_RATE / 14 * 14 : 0;
+    }
+
+    /**
+     * @param channels Amount of channels, grouped into stereo tracks in the track table
+     */
+    public byte[] brstm(int channels, int samples, boolean loop) {
+        int samplesPerBlock = BLOCK_SIZE / 8 * 14;
+        int blocks = (samples + samplesPerBlock - 1) / samplesPerBlock;
+        int lastSamples = samples - (blocks - 1) * samplesPerBlock;
+        int lastBytes = frames(lastSamples) * 8;
+        int adpcOffset = 0x260;
+        int adpcSize = 8 + blocks * channels * 4;
+        int dataOffset = Math.max(0x400, (adpcOffset + adpcSize + 0x1F) & ~0x1F);
+
+        ByteBuffer out = ByteBuffer.allocate(dataOffset + ((blocks - 1) * BLOCK_SIZE + lastBytes) * channels);
+        out.put(0, "RSTM".getBytes()).putInt(4, 0xFEFF0100).putInt(0x10, 0x40);
+        out.putInt(0x18, adpcOffset).putInt(0x1C, adpcSize);
+
+        int head = 0x40;
+        int base = head + 8;
+        out.put(head, "HEAD".getBytes());
+        out.putInt(base, 0x01000000).putInt(base + 4, 0x18);
+        out.putInt(base + 8, 0x01000000).putInt(base + 12, 0x50);
+        out.putInt(base + 16, 0x01000000).putInt(base + 20, 0x80);
+
+        // stream info
+        out.position(base + 0x18);
+        out.put((byte) 2).put((byte) (loop ? 1 : 0)).put((byte) channels).put((byte) 0);
+        out.putShort((short) SAMPLE_RATE).putShort((short) 0);
+        out.putInt(loopStart(loop)).putInt(samples).putInt(dataOffset).putInt(blocks);
+        out.putInt(BLOCK_SIZE).putInt(samplesPerBlock).putInt(lastBytes).putInt(lastSamples).putInt(lastBytes).putInt(0);
+
+        // extended track table, one stereo track per channel pair
+        int tracks = (channels + 1) / 2;
+        out.position(base + 0x50);
+        out.put((byte) tracks).put((byte) 1).putShort((short) 0);
+        int track = 0x50 + 4 + tracks * 8;
+        for (int t = 0; t < tracks; t++) {
+            int trackChannels = Math.min(2, channels - t * 2);
+            out.putInt(base + 0x50 + 4 + t * 8, 0x01010000).putInt(base + 0x50 + 8 + t * 8, track);
+            out.put(base + track, (byte) 127).put(base + track + 1, (byte) 64).put(base + track + 8, (byte) trackChannels);
+            for (int c = 0; c < trackChannels; c++)
+                out.put(base + track + 9 + c, (byte) (t * 2 + c));
+            track += 12;
+        }
+
+        // channel table with the coefficients
+        int table = base + 0x80;
+        int info = 0x80 + 4 + channels * 8;
+        out.put(table, (byte) channels);
+        for (int c = 0; c < channels; c++) {
+            out.putInt(table + 4 + c * 8, 0x01000000).putInt(table + 8 + c * 8, info + c * 0x38);
+            out.putInt(base + info + c * 0x38, 0x01000000).putInt(base + info + c * 0x38 + 4, info + c * 0x38 + 8);
+            out.position(base + info + c * 0x38 + 8);
+            this.coefs(out);
+        }
+
+        out.position(dataOffset);
+        for (int b = 0; b < blocks; b++) {
+            for (int c = 0; c < channels; c++)
+                this.adpcm(out, b < blocks - 1 ? BLOCK_SIZE : lastBytes);
+        }
+
+        // decoder history at the start of every block, found by decoding the blocks
+        out.put(adpcOffset, "ADPC".getBytes()).putInt(adpcOffset + 4, adpcSize);
+        short[] pcm = new short[samplesPerBlock];
+        for (int c = 0; c < channels; c++) {
+            int[] coef = new int[16];
+            for (int i = 0; i < 16; i++)
+                coef[i] = out.getShort(base + info + c * 0x38 + 8 + i * 2);
+            ADPCMDecoder decoder = new ADPCMDecoder();
+            decoder.setCoef(coef);
+            decoder.setHistory(0, 0);
+            int hist1 = 0;
+            int hist2 = 0;
+            for (int b = 0; b < blocks; b++) {
+                out.putShort(adpcOffset + 8 + (b * channels + c) * 4, (short) hist1);
+                out.putShort(adpcOffset + 10 + (b * channels + c) * 4, (short) hist2);
+                int count = b < blocks - 1 ? samplesPerBlock : lastSamples;
+                int size = b < blocks - 1 ? BLOCK_SIZE : lastBytes;
+                decoder.decode_ngc_dsp(out.array(), dataOffset + b * BLOCK_SIZE * channels + c * size, 0, count, pcm, 0, 1);
+                hist1 = pcm[count - 1];
+                hist2 = count > 1 ? pcm[count - 2] : hist1;
+            }
+        }
+        return out.array();
+    }
+
+    public byte[] bfstm(int channels, int samples, boolean loop, boolean bigEndian) {
+        int samplesPerBlock = BLOCK_SIZE / 8 * 14;
+        int blocks = (samples + samplesPerBlock - 1) / samplesPerBlock;
+        int lastSamples = samples - (blocks - 1) * samplesPerBlock;
+        int lastBytes = frames(lastSamples) * 8;
+        int info = 0x40;
+        int data = 0x3E0;
+
+        ByteBuffer out = ByteBuffer.allocate(data + 0x20 + ((blocks - 1) * BLOCK_SIZE + lastBytes) * channels);
+        out.put(0, "FSTM".getBytes());
+        out.put(4, (byte) (bigEndian ? 0xFE : 0xFF)).put(5, (byte) (bigEndian ? 0xFF : 0xFE));
+        out.order(bigEndian ? ByteOrder.BIG_ENDIAN : ByteOrder.LITTLE_ENDIAN);
+
+        out.putShort(0x10, (short) 3);
+        out.position(0x14);
+        out.putShort((short) 0x4000).putShort((short) 0).putInt(info).putInt(0x300);
+        out.putShort((short) 0x4001).putShort((short) 0).putInt(0x380).putInt(0x10);
+        out.putShort((short) 0x4002).putShort((short) 0).putInt(data).putInt(0);
+
+        out.put(info, "INFO".getBytes());
+        out.putShort(info + 0x18, (short) 0x0102).putInt(info + 0x1C, 0x40);
+        out.position(info + 0x20);
+        out.put((byte) 2).put((byte) (loop ? 1 : 0)).put((byte) channels).put((byte) 0);
+        out.putInt(SAMPLE_RATE).putInt(loopStart(loop)).putInt(samples).putInt(blocks);
+        out.putInt(BLOCK_SIZE).putInt(samplesPerBlock).putInt(lastBytes).putInt(lastSamples).putInt(lastBytes).putInt(0);
+
+        int table = info + 8 + 0x40;
+        out.putInt(table, channels);
+        for (int c = 0; c < channels; c++) {
+            int entry = 4 + channels * 8 + c * 8;
+            out.putShort(table + 4 + c * 8, (short) 0x4102).putInt(table + 8 + c * 8, entry);
+            out.putShort(table + entry, (short) 0x0300).putInt(table + entry + 4, 0x100 + c * 0x20 - entry);
+            out.position(table + 0x100 + c * 0x20);
+            this.coefs(out);
+        }
+
+        out.put(data, "DATA".getBytes());
+        out.position(data + 0x20);
+        for (int b = 0; b < blocks; b++) {
+            for (int c = 0; c < channels; c++)
+                this.adpcm(out, b < blocks - 1 ? BLOCK_SIZE : lastBytes);
+        }
+        return out.array();
+    }
+
+    public byte[] rs03(int channels, int samples, boolean loop) {
+        int bytes = frames(samples) * 8;
+        ByteBuffer out = ByteBuffer.allocate(0x20 + 0x20 * channels + bytes * channels);
+        out.putInt(0x52530003).putInt(channels).putInt(samples).putInt(SAMPLE_RATE).putInt(bytes * 2);
+        out.putShort((short) (loop ? 1 : 0)).putShort((short) 0);
+        out.putInt(loopStart(loop) / 14 * 8).putInt(bytes);
+        for (int c = 0; c < channels; c++) {
+            out.position(0x20 + c * 0x20);
+            this.coefs(out);
+        }
+
+        out.position(0x20 + 0x20 * channels);
+        for (int offset = 0; offset < bytes; offset += RS03_BLOCK_SIZE) {
+            for (int c = 0; c < channels; c++)
+                this.adpcm(out, Math.min(RS03_BLOCK_SIZE, bytes - offset));
+        }
+        return out.array();
+    }
+
+    /**
+     * @return One mono DSP file, use several for split channels
+     */
+    public byte[] dsp(int samples, boolean loop) {
+        int bytes = frames(samples) * 8;
+        ByteBuffer out = ByteBuffer.allocate(0x60 + bytes);
+        out.putInt(samples).putInt(bytes * 2).putInt(SAMPLE_RATE);
+        out.putShort((short) (loop ? 1 : 0)).putShort((short) 0);
+        // loop points are nibble addresses, 2 header nibbles per frame
+        out.putInt(loopStart(loop) / 14 * 16 + 2).putInt(frames(samples) * 16 - 1).putInt(2);
+        this.coefs(out);
+        out.position(0x60);
+        this.adpcm(out, bytes);
+        return out.array();
+    }
+}
@@ -0,0 +1,318 @@
+package org.hackyourlife.gcn.dsp.bench;
+
+import org.hackyourlife.gcn.dsp.Stream;
+import org.hackyourlife.gcn.dsp.player.NullSink;
+
+import java.lang.management.ManagementFactory;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Callable;
+
+/**
+ * End-to-end decode throughput: every copy is a thread that opens the given files one after the
+ * other, decodes each of them once (looping files up to their loop end) into a {@link NullSink}
+ * and starts over, for a fixed time after a warm-up. Reports the x-realtime factor, the ADPCM
+ * input rate, the latency of single block decodes and the allocation rate of the copies.
+ */
+public class Throughput {
+
+    private static final com.sun.management.ThreadMXBean THREADS = (com.sun.management.ThreadMXBean) ManagementFactory.getThreadMXBean();
+
+    private final List<Callable<Stream>> openers;
+    private int copies = 1;
+    private double seconds = 10;
+    private double warmupSeconds = 2;
+
+    private volatile boolean running;
+    private volatile boolean measuring;
+
+    /**
+     * @param openers Open the files to decode, called again for every pass over a file
+     */
+    public Throughput(List<Callable<Stream>> openers) {
+        if (openers.isEmpty())
+            throw new IllegalArgumentException("No files");
+        this.openers = openers;
+    }
+
+    /**
+     * @param copies Amount of threads decoding the files at the same time
+     */
+    public void setCopies(int copies) {
+        this.copies = Math.max(1, copies);
+    }
+
+    /**
+     * @param seconds Length of the measurement, after the warm-up
+     */
+    public void setSeconds(double seconds) {
+        this.seconds = Math.max(0.1, seconds);
+    }
+
+    /**
+     * @param seconds Time the copies run before measuring, so the JIT compiled the decode path
+     */
+    public void setWarmupSeconds(double seconds) {
+        this.warmupSeconds = Math.max(0, seconds);
+    }
+
+    /**
+     * Runs the benchmark
+     *
+     * @return The result, see {@link Result#print()}
+     */
+    public Result run() throws Exception {
+        if (THREADS.isThreadAllocatedMemorySupported())
+            THREADS.setThreadAllocatedMemoryEnabled(true);
+
+        this.running = true;
+        this.measuring = false;
+        List<Copy> copies = new ArrayList<>();
+        for (int i = 0; i < this.copies; i++) {
+            Copy copy = new Copy(i);
+            copies.add(copy);
+            copy.start();
+        }
+
+        Thread.sleep((long) (this.warmupSeconds * 1000));
+        long[] ids = new long[copies.size()];
+        for (int i = 0; i < ids.length; i++)
+            ids[i] = copies.get(i).getId();
+        this.measuring = true;
+        long start = System.nanoTime();
+        long allocatedBefore = allocated(ids);
+        long[] before = totals(copies);
+
+        Thread.sleep((long) (this.seconds * 1000));
+        long[] after = totals(copies);
+        long allocatedAfter = allocated(ids);
+        long elapsed = System.nanoTime() - start;
+        this.measuring = false;
+        this.running = false;
+
+        Histogram latency = new Histogram();
+        Exception failure = null;
+        for (Copy copy : copies) {
+            copy.join();
+            latency.add(copy.latency);
+            if (failure == null)
+                failure = copy.failure;
+        }
+        if (failure != null)
+            throw failure;
+
+        return new Result(this.openers.size(), copies.size(), elapsed, after[0] - before[0], after[1] - before[1],
+                allocatedAfter - allocatedBefore, latency);
+    }
+
+    private static long[] totals(List<Copy> copies) {
+        long seconds = 0;
+        long bytes = 0;
+        for (Copy copy : copies) {
+            // audio in nanoseconds, so streams of different rates add up
+            seconds += copy.audioNanos;
+            bytes += copy.inputBytes;
+        }
+        return new long[]{seconds, bytes};
+    }
+
+    private static long allocated(long[] ids) {
+        if (!THREADS.isThreadAllocatedMemorySupported())
+            return -1;
+        long sum = 0;
+        for (long bytes : THREADS.getThreadAllocatedBytes(ids)) {
+            if (bytes > 0)
+                sum += bytes;
+        }
+        return sum;
+    }
+
+    /**
+     * One thread decoding all files over and over
+     */
+    private class Copy extends Thread {
+        private final Histogram latency = new Histogram();
+        private final NullSink sink = new NullSink();
+        private volatile long audioNanos;
+        private volatile long inputBytes;
+        private Exception failure;
+
+        private Copy(int index) {
+            super("throughput-" + index);
+            this.setDaemon(true);
+        }
+
+        @Override
+        public void run() {
+            ByteBuffer buffer = null;
+            try {
+                for (int file = 0; running; file = (file + 1) % openers.size()) {
+                    Stream stream = openers.get(file).call();
+                    try {
+                        int channels = stream.getChannels();
+                        long rate = stream.getSampleRate();
+                        int size = stream.getMaxBlockFrames() * channels * 2;
+                        if (buffer == null || buffer.capacity() < size)
+                            buffer = ByteBuffer.allocate(size);
+                        this.sink.open((int) rate, channels, true, size);
+
+                        // one pass: up to the loop end for looping files
+                        long end = stream.getLoopEndSample();
+                        long frames = 0;
+                        while (running && stream.hasMoreData() && (end < 0 || frames < end)) {
+                            buffer.clear();
+                            long begin = System.nanoTime();
+                            int count = stream.decode(buffer);
+                            long took = System.nanoTime() - begin;
+                            if (measuring)
+                                this.latency.record(took);
+                            this.sink.write(buffer.array(), 0, buffer.position());
+                            frames += count;
+                            this.audioNanos += count * 1_000_000_000L / rate;
+                            // ADPCM: 8 bytes per 14 samples of every channel
+                            this.inputBytes += (long) count * channels * 8 / 14;
+                        }
+                    } finally {
+                        stream.close();
+                    }
+                }
+            } catch (Exception e) {
+                this.failure = e;
+                running = false;
+            }
+        }
+    }
+
+    /**
+     * Log-linear histogram of nanosecond values with 16 buckets per power of two (about 6% error)
+     */
+    static class Histogram {
+        private static final int SUB_BUCKETS = 16;
+        private final long[] counts = new long[61 * SUB_BUCKETS];
+        private long total = 0;
+        private long max = 0;
+
+        void record(long value) {
+            value = Math.max(value, 0);
+            this.counts[index(value)]++;
+            this.total++;
+            this.max = Math.max(this.max, value);
+        }
+
+        void add(Histogram other) {
+            for (int i = 0; i < this.counts.length; i++)
+                this.counts[i] += other.counts[i];
+            this.total += other.total;
+            this.max = Math.max(this.max, other.max);
+        }
+
+        long getCount() {
+            return total;
+        }
+
+        long getMax() {
+            return max;
+        }
+
+        /**
+         * @param fraction Between 0 and 1
+         * @return The lower bound of the bucket that holds the value at the fraction
+         */
+        long percentile(double fraction) {
+            if (this.total == 0)
+                return 0;
+            long rank = (long) Math.ceil(fraction * this.total);
+            long seen = 0;
+            for (int i = 0; i < this.counts.length; i++) {
+                seen += this.counts[i];
+                if (seen >= rank)
+                    return Math.min(value(i), this.max);
+            }
+            return this.max;
+        }
+
+        private static int index(long value) {
+            if (value < SUB_BUCKETS)
+                return (int) value;
+            int exponent = 63 - Long.numberOfLeadingZeros(value);
+            int sub = (int) (value >>> (exponent - 4)) & (SUB_BUCKETS - 1);
+            return (exponent - 3) * SUB_BUCKETS + sub;
+        }
+
+        private static long value(int index) {
+            if (index < SUB_BUCKETS)
+                return index;
+            int exponent = index / SUB_BUCKETS + 3;
+            return ((long) (SUB_BUCKETS | (index % SUB_BUCKETS))) << (exponent - 4);
+        }
+    }
+
+    /**
+     * Measured totals of one run
+     */
+    public static class Result {
+        private final int files;
+        private final int copies;
+        private final long elapsedNanos;
+        private final long audioNanos;
+        private final long inputBytes;
+        private final long allocatedBytes;
+        private final Histogram latency;
+
+        private Result(int files, int copies, long elapsedNanos, long audioNanos, long inputBytes, long allocatedBytes, Histogram latency) {
+            this.files = files;
+            this.copies = copies;
+            this.elapsedNanos = elapsedNanos;
+            this.audioNanos = audioNanos;
+            this.inputBytes = inputBytes;
+            this.allocatedBytes = allocatedBytes;
+            this.latency = latency;
+        }
+
+        /**
+         * @return Seconds of audio decoded per second, summed over all copies
+         */
+        public double getRealtimeFactor() {
+            return (double) audioNanos / elapsedNanos;
+        }
+
+        /**
+         * @return Megabytes (10^6) of ADPCM input decoded per second
+         */
+        public double getInputMegabytesPerSecond() {
+            return inputBytes / 1e6 / (elapsedNanos / 1e9);
+        }
+
+        /**
+         * @return Bytes allocated by the copies per second, or -1 if the JVM does not count them
+         */
+        public long getAllocatedBytesPerSecond() {
+            if (allocatedBytes < 0)
+                return -1;
+            return (long) (allocatedBytes / (elapsedNanos / 1e9));
+        }
+
+        /**
+         * @param fraction Between 0 and 1, e.g. 0.99
+         * @return The decode time of a single block at that percentile, in nanoseconds
+         */
+        public long getLatencyPercentileNanos(double fraction) {
+            return latency.percentile(fraction);
+        }
+
+        public void print() {
+            System.out.printf("files %d, copies %d, measured %.1f s%n", files, copies, elapsedNanos / 1e9);
+            System.out.printf("audio decoded    %.1f s, %.1fx realtime%n", audioNanos / 1e9, this.getRealtimeFactor());
+            System.out.printf("input            %.2f MB/s ADPCM%n", this.getInputMegabytesPerSecond());
+            System.out.printf("block decode     p50 %.1f us, p90 %.1f us, p99 %.1f us, p99.9 %.1f us, max %.1f us (%d blocks)%n",
+                    latency.percentile(0.5) / 1e3, latency.percentile(0.9) / 1e3, latency.percentile(0.99) / 1e3,
+                    latency.percentile(0.999) / 1e3, latency.getMax() / 1e3, latency.getCount());
+            long allocated = this.getAllocatedBytesPerSecond();
+            if (allocated < 0)
+                System.out.println("allocation       not supported by this JVM");
+            else
+                System.out.printf("allocation       %d bytes/s, %.1f bytes per second of audio%n", allocated, allocatedBytes / (audioNanos / 1e9));
+        }
+    }
+}
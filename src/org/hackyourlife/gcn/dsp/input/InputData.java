@@ -2,7 +2,17 @@ package org.hackyourlife.gcn.dsp.input;
 
 import java.io.IOException;
 import java.io.InputStream;
+import java.io.InterruptedIOException;
 import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.AsynchronousFileChannel;
+import java.nio.channels.FileChannel;
+import java.nio.channels.SeekableByteChannel;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayDeque;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
 
 /**
  * Created by Nick on 14 nov. 2019.
@@ -20,12 +30,152 @@ public abstract class InputData {
         return new InputDataFile(file);
     }
 
+    /**
+     * Reads the remaining bytes of the buffer (position to limit) without copying them.
+     * Every call creates an independent read-only view, so several streams can share one buffer;
+     * the position and limit of {@code buffer} itself are not changed.
+     */
+    public static InputData getInputData(ByteBuffer buffer) {
+        return new InputDataBuffer(buffer.asReadOnlyBuffer().slice());
+    }
+
+    public static InputData getInputData(byte[] data) {
+        return getInputData(data, 0, data.length);
+    }
+
+    /**
+     * Reads {@code len} bytes of {@code data} starting at {@code off}, without copying them
+     */
+    public static InputData getInputData(byte[] data, int off, int len) {
+        return getInputData(ByteBuffer.wrap(data, off, len));
+    }
+
+    /**
+     * Reads from a channel, which is closed together with the returned data.
+     * Positional reads on a {@link FileChannel} leave its position untouched.
+     */
+    public static InputData getInputData(SeekableByteChannel channel) throws IOException {
+        return new InputDataChannel(channel);
+    }
+
+    public static InputData getInputData(Path file) throws IOException {
+        return new InputDataChannel(FileChannel.open(file, StandardOpenOption.READ));
+    }
+
+    /**
+     * Opens a file for reading with read-ahead: ranges announced through {@link #prefetch(long, int)}
+     * are read in the background, so a later read of them does not wait for the disk
+     *
+     * @param depth The most reads kept in flight
+     */
+    public static InputData getReadAheadInputData(Path file, int depth) throws IOException {
+        return new InputDataReadAhead(file, depth);
+    }
+
+    /**
+     * Reads a stream front to back without ever going back, e.g. a pipe or a socket, with a
+     * buffer of {@link #FORWARD_WINDOW} bytes, see {@link #getForwardInputData(InputStream, long, int)}
+     */
+    public static InputData getForwardInputData(InputStream stream) {
+        return getForwardInputData(stream, -1, FORWARD_WINDOW);
+    }
+
+    /**
+     * Reads a stream front to back without mark, reset or seeking back. Only the last
+     * {@code window} bytes are kept, so headers can be parsed in any order as long as they fit
+     * into the window, and data is read as it arrives. Reads before the window fail with an
+     * {@link IOException}. Streams opened on such an input do not loop, see
+     * {@link #isForwardOnly()}, and it can not back an {@code Asset}.
+     *
+     * @param length The length of the stream if it is known, otherwise -1
+     * @param window Size of the buffer, it should hold the header of the file
+     */
+    public static InputData getForwardInputData(InputStream stream, long length, int window) {
+        return new InputDataForward(stream, length, window);
+    }
+
+    /** Default buffer of a forward-only input, enough for the headers of all supported formats */
+    public static final int FORWARD_WINDOW = 1 << 16;
+
+    /**
+     * @return The length of the data, or -1 if it is not known before the end was read
+     */
     public abstract long length();
     public abstract int read() throws IOException;
     public abstract int read(byte[] data) throws IOException;
+    public abstract int read(byte[] data, int off, int len) throws IOException;
     public abstract void seek(long pos) throws IOException;
     public abstract void close() throws IOException;
 
+    /**
+     * Reads {@code len} bytes at the absolute position {@code pos}.
+     * The default implementation seeks and reads sequentially, implementations
+     * that can read without touching the file pointer override it.
+     *
+     * @return The amount of bytes read, only less than {@code len} at the end of the data
+     */
+    public synchronized int read(long pos, byte[] data, int off, int len) throws IOException {
+        this.seek(pos);
+        int total = 0;
+        while (total < len) {
+            int read = this.read(data, off + total, len - total);
+            if (read <= 0)
+                break;
+            total += read;
+        }
+        return total;
+    }
+
+    /**
+     * Reads {@code dst.remaining()} bytes at the absolute position {@code pos} into {@code dst}
+     * and advances its position. Callers reading into the same array again keep one buffer
+     * wrapping it, so steady reads do not allocate; file and channel inputs read into it without
+     * taking a lock.
+     *
+     * @return The amount of bytes read, only less than requested at the end of the data
+     */
+    public int read(long pos, ByteBuffer dst) throws IOException {
+        int len = dst.remaining();
+        int read;
+        if (dst.hasArray()) {
+            read = this.read(pos, dst.array(), dst.arrayOffset() + dst.position(), len);
+        } else {
+            byte[] data = new byte[len];
+            read = Math.max(this.read(pos, data, 0, len), 0);
+            dst.put(dst.position(), data, 0, read);
+        }
+        dst.position(dst.position() + Math.max(read, 0));
+        return read;
+    }
+
+    /**
+     * Positional reads of a file channel leave its position alone and may run on any number of
+     * threads at once
+     */
+    private static int readFully(FileChannel channel, long pos, ByteBuffer dst) throws IOException {
+        int start = dst.position();
+        while (dst.hasRemaining()) {
+            if (channel.read(dst, pos + dst.position() - start) < 0)
+                break;
+        }
+        return dst.position() - start;
+    }
+
+    /**
+     * @return If the data can only be read front to back; streams then ignore their loop and can
+     *         not be reset
+     */
+    public boolean isForwardOnly() {
+        return false;
+    }
+
+    /**
+     * Hints that {@code len} bytes at {@code pos} will be read soon. Does nothing by default,
+     * implementations with read-ahead start reading the range in the background.
+     */
+    public void prefetch(long pos, int len) {
+    }
+
     private static class InputDataStream extends InputData {
         private InputStream stream;
 
@@ -58,6 +208,11 @@ public abstract class InputData {
             return this.stream.read(data);
         }
 
+        @Override
+        public int read(byte[] data, int off, int len) throws IOException {
+            return this.stream.read(data, off, len);
+        }
+
         @Override
         public void seek(long pos) throws IOException {
             this.stream.reset();
@@ -82,14 +237,144 @@ public abstract class InputData {
 
 
 
+    private static class InputDataForward extends InputData {
+        private final InputStream stream;
+        private final long length;
+        private final byte[] window;
+        // stream offset of window[0] and the bytes of the window that were read
+        private long base = 0;
+        private int filled = 0;
+        private boolean end = false;
+        private long position = 0;
+        private final byte[] single = new byte[1];
+
+        public InputDataForward(InputStream stream, long length, int window) {
+            if (window < 1)
+                throw new IllegalArgumentException("window");
+            this.stream = stream;
+            this.length = length;
+            this.window = new byte[window];
+        }
+
+        @Override
+        public long length() {
+            return this.length;
+        }
+
+        @Override
+        public boolean isForwardOnly() {
+            return true;
+        }
+
+        @Override
+        public synchronized int read(long pos, byte[] data, int off, int len) throws IOException {
+            if (pos < this.base)
+                throw new IOException("Forward-only input cannot go back to " + pos + ", it is at " + this.base);
+            if (pos > this.base + this.filled && !this.skip(pos))
+                return 0;
+
+            int start = (int) (pos - this.base);
+            if (start + len > this.window.length) {
+                // keep the bytes from pos on, the window moves forward
+                System.arraycopy(this.window, start, this.window, 0, this.filled - start);
+                this.filled -= start;
+                this.base = pos;
+                start = 0;
+            }
+            if (len > this.window.length) {
+                // larger than the window: what is buffered, then straight from the stream
+                int total = this.filled;
+                System.arraycopy(this.window, 0, data, off, total);
+                while (total < len) {
+                    int read = this.stream.read(data, off + total, len - total);
+                    if (read < 0) {
+                        this.end = true;
+                        break;
+                    }
+                    total += read;
+                }
+                this.base = pos + total;
+                this.filled = 0;
+                return total;
+            }
+
+            while (this.filled < start + len && !this.end) {
+                int read = this.stream.read(this.window, this.filled, this.window.length - this.filled);
+                if (read < 0)
+                    this.end = true;
+                else
+                    this.filled += read;
+            }
+            int count = Math.max(0, Math.min(len, this.filled - start));
+            System.arraycopy(this.window, start, data, off, count);
+            return count;
+        }
+
+        /**
+         * Drops the window and the stream up to {@code pos}
+         *
+         * @return If the stream reaches {@code pos}
+         */
+        private boolean skip(long pos) throws IOException {
+            this.base += this.filled;
+            this.filled = 0;
+            while (this.base < pos) {
+                int read = this.stream.read(this.window, 0, (int) Math.min(this.window.length, pos - this.base));
+                if (read < 0) {
+                    this.end = true;
+                    this.base = pos;
+                    return false;
+                }
+                this.base += read;
+            }
+            return true;
+        }
+
+        @Override
+        public synchronized int read() throws IOException {
+            if (this.read(this.single, 0, 1) < 1)
+                return -1;
+            return this.single[0] & 0xFF;
+        }
+
+        @Override
+        public int read(byte[] data) throws IOException {
+            return this.read(data, 0, data.length);
+        }
+
+        @Override
+        public synchronized int read(byte[] data, int off, int len) throws IOException {
+            int read = this.read(this.position, data, off, len);
+            if (read <= 0)
+                return -1;
+            this.position += read;
+            return read;
+        }
+
+        /**
+         * Only moves the position of the sequential reads, the stream is read when they happen
+         */
+        @Override
+        public synchronized void seek(long pos) {
+            this.position = pos;
+        }
+
+        @Override
+        public void close() throws IOException {
+            this.stream.close();
+        }
+    }
+
     private static class InputDataFile extends InputData {
         private RandomAccessFile randomAccessFile;
+        private final FileChannel channel;
 
         private long filepos;
         private long length;
 
         public InputDataFile(RandomAccessFile randomAccessFile) {
             this.randomAccessFile = randomAccessFile;
+            this.channel = randomAccessFile.getChannel();
 
             try {
                 this.length = this.randomAccessFile.length();
@@ -113,6 +398,21 @@ public abstract class InputData {
             return this.randomAccessFile.read(data);
         }
 
+        @Override
+        public int read(byte[] data, int off, int len) throws IOException {
+            return this.randomAccessFile.read(data, off, len);
+        }
+
+        @Override
+        public int read(long pos, byte[] data, int off, int len) throws IOException {
+            return this.read(pos, ByteBuffer.wrap(data, off, len));
+        }
+
+        @Override
+        public int read(long pos, ByteBuffer dst) throws IOException {
+            return readFully(this.channel, pos, dst);
+        }
+
         @Override
         public void seek(long pos) throws IOException {
             this.randomAccessFile.seek(pos);
@@ -123,4 +423,262 @@ public abstract class InputData {
             this.randomAccessFile.close();
         }
     }
-}
\ No newline at end of file
+
+    private static class InputDataReadAhead extends InputData {
+        private final AsynchronousFileChannel channel;
+        private final int depth;
+        private final long length;
+        private long filepos;
+
+        /** reads in flight or completed but not consumed yet, oldest first */
+        private final ArrayDeque<Pending> pending = new ArrayDeque<>();
+        /** buffers of consumed reads, reused by the next prefetches */
+        private final ArrayDeque<ByteBuffer> pool = new ArrayDeque<>();
+
+        private static class Pending {
+            private final long pos;
+            private final int len;
+            private final ByteBuffer buffer;
+            private final Future<Integer> result;
+
+            private Pending(long pos, int len, ByteBuffer buffer, Future<Integer> result) {
+                this.pos = pos;
+                this.len = len;
+                this.buffer = buffer;
+                this.result = result;
+            }
+        }
+
+        public InputDataReadAhead(Path file, int depth) throws IOException {
+            this.channel = AsynchronousFileChannel.open(file, StandardOpenOption.READ);
+            this.depth = Math.max(depth, 1);
+            this.length = this.channel.size();
+        }
+
+        @Override
+        public long length() {
+            return this.length;
+        }
+
+        @Override
+        public synchronized void prefetch(long pos, int len) {
+            if (pos < 0 || pos >= this.length || len <= 0)
+                return;
+            for (Pending read : this.pending) {
+                if (read.pos == pos && read.len >= len)
+                    return;
+            }
+            if (this.pending.size() >= this.depth)
+                return;
+
+            ByteBuffer buffer = this.pool.poll();
+            if (buffer == null || buffer.capacity() < len)
+                buffer = ByteBuffer.allocateDirect(len);
+            buffer.clear().limit(len);
+            this.pending.add(new Pending(pos, len, buffer, this.channel.read(buffer, pos)));
+        }
+
+        @Override
+        public synchronized int read(long pos, byte[] data, int off, int len) throws IOException {
+            Pending hit = null;
+            for (Pending read : this.pending) {
+                if (read.pos == pos && read.len >= len) {
+                    hit = read;
+                    break;
+                }
+            }
+            if (hit == null) {
+                // the reader moved elsewhere (e.g. a loop), the outstanding reads are of no use
+                this.pending.clear();
+                return this.readDirect(pos, data, off, len);
+            }
+
+            // reads issued before the hit belong to ranges that were skipped
+            while (this.pending.peek() != hit)
+                this.pending.poll();
+            this.pending.poll();
+
+            int read;
+            try {
+                read = Math.max(hit.result.get(), 0);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new InterruptedIOException();
+            } catch (ExecutionException e) {
+                throw new IOException(e.getCause());
+            }
+            ByteBuffer buffer = hit.buffer;
+            buffer.flip();
+            int count = Math.min(read, len);
+            buffer.get(data, off, count);
+            this.pool.add(buffer);
+            if (count < len && pos + count < this.length)
+                count += this.readDirect(pos + count, data, off + count, len - count);
+            return count;
+        }
+
+        private int readDirect(long pos, byte[] data, int off, int len) throws IOException {
+            ByteBuffer buffer = ByteBuffer.wrap(data, off, len);
+            try {
+                while (buffer.hasRemaining()) {
+                    if (this.channel.read(buffer, pos + buffer.position() - off).get() < 0)
+                        break;
+                }
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new InterruptedIOException();
+            } catch (ExecutionException e) {
+                throw new IOException(e.getCause());
+            }
+            return buffer.position() - off;
+        }
+
+        @Override
+        public synchronized int read() throws IOException {
+            byte[] data = new byte[1];
+            if (this.read(data, 0, 1) < 1)
+                return -1;
+            return data[0] & 0xFF;
+        }
+
+        @Override
+        public int read(byte[] data) throws IOException {
+            return this.read(data, 0, data.length);
+        }
+
+        @Override
+        public synchronized int read(byte[] data, int off, int len) throws IOException {
+            if (this.filepos >= this.length)
+                return -1;
+            int read = this.readDirect(this.filepos, data, off, len);
+            this.filepos += read;
+            return read;
+        }
+
+        @Override
+        public synchronized void seek(long pos) {
+            this.filepos = pos;
+        }
+
+        @Override
+        public synchronized void close() throws IOException {
+            this.pending.clear();
+            this.pool.clear();
+            this.channel.close();
+        }
+    }
+
+    private static class InputDataBuffer extends InputData {
+        private final ByteBuffer buffer;
+
+        private int filepos;
+
+        public InputDataBuffer(ByteBuffer buffer) {
+            this.buffer = buffer;
+        }
+
+        @Override
+        public long length() {
+            return this.buffer.capacity();
+        }
+
+        @Override
+        public int read() {
+            if (this.filepos >= this.buffer.capacity())
+                return -1;
+            return this.buffer.get(this.filepos++) & 0xFF;
+        }
+
+        @Override
+        public int read(byte[] data) {
+            return this.read(data, 0, data.length);
+        }
+
+        @Override
+        public int read(byte[] data, int off, int len) {
+            if (len > 0 && this.filepos >= this.buffer.capacity())
+                return -1;
+            int read = this.read(this.filepos, data, off, len);
+            this.filepos += read;
+            return read;
+        }
+
+        @Override
+        public int read(long pos, byte[] data, int off, int len) {
+            if (pos >= this.buffer.capacity())
+                return 0;
+            int count = (int) Math.min(len, this.buffer.capacity() - pos);
+            this.buffer.get((int) pos, data, off, count);
+            return count;
+        }
+
+        @Override
+        public void seek(long pos) {
+            this.filepos = (int) Math.min(Math.max(pos, 0), this.buffer.capacity());
+        }
+
+        /**
+         * The buffer belongs to the caller, other views may still use it
+         */
+        @Override
+        public void close() {
+        }
+    }
+
+    private static class InputDataChannel extends InputData {
+        private final SeekableByteChannel channel;
+        private final long length;
+
+        public InputDataChannel(SeekableByteChannel channel) throws IOException {
+            this.channel = channel;
+            this.length = channel.size();
+        }
+
+        @Override
+        public long length() {
+            return this.length;
+        }
+
+        @Override
+        public synchronized int read() throws IOException {
+            ByteBuffer data = ByteBuffer.allocate(1);
+            if (this.channel.read(data) < 1)
+                return -1;
+            return data.get(0) & 0xFF;
+        }
+
+        @Override
+        public int read(byte[] data) throws IOException {
+            return this.read(data, 0, data.length);
+        }
+
+        @Override
+        public synchronized int read(byte[] data, int off, int len) throws IOException {
+            return this.channel.read(ByteBuffer.wrap(data, off, len));
+        }
+
+        @Override
+        public int read(long pos, byte[] data, int off, int len) throws IOException {
+            if (!(this.channel instanceof FileChannel))
+                return super.read(pos, data, off, len);
+            return this.read(pos, ByteBuffer.wrap(data, off, len));
+        }
+
+        @Override
+        public int read(long pos, ByteBuffer dst) throws IOException {
+            if (!(this.channel instanceof FileChannel))
+                return super.read(pos, dst);
+            return readFully((FileChannel) this.channel, pos, dst);
+        }
+
+        @Override
+        public synchronized void seek(long pos) throws IOException {
+            this.channel.position(pos);
+        }
+
+        @Override
+        public void close() throws IOException {
+            this.channel.close();
+        }
+    }
+}
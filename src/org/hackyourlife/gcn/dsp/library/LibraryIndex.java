@@ -0,0 +1,275 @@
+package org.hackyourlife.gcn.dsp.library;
+
+import org.hackyourlife.gcn.dsp.StreamInfo;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+
+/**
+ * Read-only view of a library index file. The file is memory mapped as a whole and entries are
+ * only decoded when they are accessed, so loading does not depend on the size of the library.
+ *
+ * <p>Layout (big-endian): a 16 byte header ({@code "LIDX"}, version, entry count, size of the
+ * path pool), fixed size records sorted by path, followed by the UTF-8 paths of the records.
+ * Version 2 added the loudness (integrated loudness and true peak, NaN if not measured) to the
+ * records; older index files are rebuilt by the {@link LibraryScanner}.</p>
+ */
+public class LibraryIndex {
+
+    private static final int MAGIC = 0x4C494458; // "LIDX"
+    private static final int VERSION = 2;
+    private static final int HEADER_SIZE = 16;
+    private static final int RECORD_SIZE = 72;
+
+    /** Format names by their code in the records */
+    private static final String[] FORMATS = {"BRSTM", "BFSTM", "RS03", "DSP"};
+
+    private static final LibraryIndex EMPTY = new LibraryIndex(ByteBuffer.allocate(HEADER_SIZE), 0);
+
+    private final ByteBuffer data;
+    private final int count;
+
+    private LibraryIndex(ByteBuffer data, int count) {
+        this.data = data;
+        this.count = count;
+    }
+
+    /**
+     * @return An index without entries
+     */
+    public static LibraryIndex empty() {
+        return EMPTY;
+    }
+
+    /**
+     * Maps an index file
+     *
+     * @throws IOException If the file can not be read or is not an index file
+     */
+    public static LibraryIndex load(Path file) throws IOException {
+        ByteBuffer data;
+        try (FileChannel channel = FileChannel.open(file, StandardOpenOption.READ)) {
+            data = channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+        }
+        data.order(ByteOrder.BIG_ENDIAN);
+
+        if (data.capacity() < HEADER_SIZE || data.getInt(0) != MAGIC)
+            throw new IOException("Not a library index: " + file);
+        if (data.getInt(4) != VERSION)
+            throw new IOException("Unsupported library index version " + data.getInt(4) + ": " + file);
+        int count = data.getInt(8);
+        long expected = HEADER_SIZE + (long) count * RECORD_SIZE + data.getInt(12);
+        if (count < 0 || expected != data.capacity())
+            throw new IOException("Library index is truncated: " + file);
+        return new LibraryIndex(data, count);
+    }
+
+    /**
+     * Writes the entries to {@code file}, replacing it atomically
+     */
+    static void write(Path file, List<Entry> entries) throws IOException {
+        List<Entry> sorted = new ArrayList<>(entries);
+        sorted.sort(Comparator.comparing(Entry::getPath));
+
+        byte[][] paths = new byte[sorted.size()][];
+        int pool = 0;
+        for (int i = 0; i < paths.length; i++) {
+            paths[i] = sorted.get(i).getPath().getBytes(StandardCharsets.UTF_8);
+            pool += paths[i].length;
+        }
+
+        ByteBuffer buffer = ByteBuffer.allocate(HEADER_SIZE + sorted.size() * RECORD_SIZE + pool);
+        buffer.putInt(MAGIC).putInt(VERSION).putInt(sorted.size()).putInt(pool);
+        int pathOffset = 0;
+        for (int i = 0; i < paths.length; i++) {
+            Entry entry = sorted.get(i);
+            StreamInfo info = entry.getInfo();
+            int format = Arrays.asList(FORMATS).indexOf(info.getFormat());
+            if (format < 0)
+                throw new IllegalArgumentException("Unknown format " + info.getFormat());
+
+            buffer.putLong(entry.getSize());
+            buffer.putLong(entry.getLastModified());
+            buffer.putLong(info.getSampleCount());
+            buffer.putLong(info.getLoopStartSample());
+            buffer.putLong(info.getLoopEndSample());
+            buffer.putInt((int) info.getSampleRate());
+            buffer.putInt((int) info.getInterleaveSize());
+            buffer.putInt(entry.getHash());
+            buffer.putInt(pathOffset);
+            buffer.putInt(paths[i].length);
+            buffer.put((byte) format);
+            buffer.put((byte) info.getChannels());
+            buffer.put((byte) (info.isLooping() ? 1 : 0));
+            buffer.put((byte) 0);
+            Loudness loudness = entry.getLoudness();
+            buffer.putFloat(loudness != null ? loudness.getIntegrated() : Float.NaN);
+            buffer.putFloat(loudness != null ? loudness.getTruePeak() : Float.NaN);
+            pathOffset += paths[i].length;
+        }
+        for (byte[] path : paths)
+            buffer.put(path);
+
+        Path temp = file.resolveSibling(file.getFileName() + ".tmp");
+        Files.write(temp, buffer.array());
+        Files.move(temp, file, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+    }
+
+    public int size() {
+        return count;
+    }
+
+    /**
+     * @return The entry at {@code index}, entries are sorted by path
+     */
+    public Entry get(int index) {
+        if (index < 0 || index >= this.count)
+            throw new IndexOutOfBoundsException("Entry " + index + " of " + this.count);
+        int record = HEADER_SIZE + index * RECORD_SIZE;
+        ByteBuffer data = this.data;
+        boolean loop = data.get(record + 62) != 0;
+        StreamInfo info = new StreamInfo(
+                FORMATS[data.get(record + 60)],
+                data.getInt(record + 40),
+                data.get(record + 61) & 0xFF,
+                data.getLong(record + 16),
+                loop,
+                data.getLong(record + 24),
+                data.getLong(record + 32),
+                data.getInt(record + 44) & 0xFFFFFFFFL
+        );
+        float integrated = data.getFloat(record + 64);
+        Loudness loudness = Float.isNaN(integrated) ? null : new Loudness(integrated, data.getFloat(record + 68));
+        return new Entry(this.path(index), data.getLong(record), data.getLong(record + 8), data.getInt(record + 48), info, loudness);
+    }
+
+    private String path(int index) {
+        int record = HEADER_SIZE + index * RECORD_SIZE;
+        byte[] path = new byte[this.data.getInt(record + 56)];
+        int offset = HEADER_SIZE + this.count * RECORD_SIZE + this.data.getInt(record + 52);
+        for (int i = 0; i < path.length; i++)
+            path[i] = this.data.get(offset + i);
+        return new String(path, StandardCharsets.UTF_8);
+    }
+
+    /**
+     * Looks up an entry by binary search over the sorted paths
+     *
+     * @param path The path relative to the scanned root, with {@code /} as separator
+     * @return The entry or {@code null} if the path is not indexed
+     */
+    public Entry find(String path) {
+        int low = 0;
+        int high = this.count - 1;
+        while (low <= high) {
+            int middle = (low + high) >>> 1;
+            int compare = this.path(middle).compareTo(path);
+            if (compare < 0)
+                low = middle + 1;
+            else if (compare > 0)
+                high = middle - 1;
+            else
+                return this.get(middle);
+        }
+        return null;
+    }
+
+    /**
+     * @return All entries, decoded
+     */
+    public List<Entry> entries() {
+        List<Entry> entries = new ArrayList<>(this.count);
+        for (int i = 0; i < this.count; i++)
+            entries.add(this.get(i));
+        return Collections.unmodifiableList(entries);
+    }
+
+    /**
+     * One indexed file
+     */
+    public static class Entry {
+        private final String path;
+        private final long size;
+        private final long lastModified;
+        private final int hash;
+        private final StreamInfo info;
+        private final Loudness loudness;
+
+        public Entry(String path, long size, long lastModified, int hash, StreamInfo info) {
+            this(path, size, lastModified, hash, info, null);
+        }
+
+        /**
+         * @param loudness The measured loudness, {@code null} if it was not measured
+         */
+        public Entry(String path, long size, long lastModified, int hash, StreamInfo info, Loudness loudness) {
+            this.path = path;
+            this.size = size;
+            this.lastModified = lastModified;
+            this.hash = hash;
+            this.info = info;
+            this.loudness = loudness;
+        }
+
+        /**
+         * @return The path relative to the scanned root, with {@code /} as separator
+         */
+        public String getPath() {
+            return path;
+        }
+
+        public long getSize() {
+            return size;
+        }
+
+        /**
+         * @return The modification time in milliseconds since the epoch
+         */
+        public long getLastModified() {
+            return lastModified;
+        }
+
+        /**
+         * @return The CRC32C of the whole file
+         */
+        public int getHash() {
+            return hash;
+        }
+
+        public StreamInfo getInfo() {
+            return info;
+        }
+
+        /**
+         * @return The loudness, {@code null} if the scan did not measure it
+         */
+        public Loudness getLoudness() {
+            return loudness;
+        }
+
+        /**
+         * @return The linear gain to play the file at the target loudness with, see
+         *         {@link Loudness#getGain(float)}; 1 if the loudness was not measured
+         */
+        public float getNormalizationGain(float target) {
+            return loudness != null ? loudness.getGain(target) : 1.0F;
+        }
+
+        @Override
+        public String toString() {
+            return path + " " + info + String.format(" crc32c=%08x", hash) + (loudness != null ? " " + loudness : "");
+        }
+    }
+}
@@ -0,0 +1,227 @@
+package org.hackyourlife.gcn.dsp.library;
+
+import org.hackyourlife.gcn.dsp.BFSTM;
+import org.hackyourlife.gcn.dsp.BRSTM;
+import org.hackyourlife.gcn.dsp.DSP;
+import org.hackyourlife.gcn.dsp.FileFormatException;
+import org.hackyourlife.gcn.dsp.RS03;
+import org.hackyourlife.gcn.dsp.StreamInfo;
+import org.hackyourlife.gcn.dsp.input.InputData;
+
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.stream.Stream;
+import java.util.zip.CRC32C;
+
+/**
+ * Walks a directory tree and keeps a {@link LibraryIndex} of its audio files up to date.
+ * Files whose size and modification time match the previous index are taken over as they are,
+ * all others are probed and hashed on a pool of worker threads. The loudness of the files can be
+ * measured in the same pass, see {@link #setMeasureLoudness(boolean)}.
+ */
+public class LibraryScanner {
+
+    private static final String[] EXTENSIONS = {".brstm", ".bfstm", ".rs03", ".dsp"};
+    private static final int HASH_BUFFER_SIZE = 1 << 16;
+
+    private final Path root;
+    private int threads = Runtime.getRuntime().availableProcessors();
+    private boolean measureLoudness = false;
+
+    private int probed;
+    private final List<Path> failed = Collections.synchronizedList(new ArrayList<>());
+    private final ThreadLocal<ByteBuffer> hashBuffer = ThreadLocal.withInitial(() -> ByteBuffer.allocateDirect(HASH_BUFFER_SIZE));
+
+    /**
+     * @param root The directory to scan
+     */
+    public LibraryScanner(Path root) {
+        this.root = root;
+    }
+
+    /**
+     * @param threads The amount of files probed at the same time
+     */
+    public void setThreads(int threads) {
+        this.threads = Math.max(1, threads);
+    }
+
+    /**
+     * @param measureLoudness If every probed file is also decoded to measure its {@link Loudness},
+     *                        which makes files of the previous index without a measurement count as
+     *                        changed
+     */
+    public void setMeasureLoudness(boolean measureLoudness) {
+        this.measureLoudness = measureLoudness;
+    }
+
+    /**
+     * Scans the tree and writes the index file. The previous contents of the index file are used
+     * to skip files that did not change. Files that can not be read are left out of the index and
+     * listed by {@link #getFailed()}; only errors of the index file itself end the scan.
+     *
+     * @param indexFile The index to update, created if it does not exist
+     * @return The new index, mapped from {@code indexFile}
+     */
+    public LibraryIndex scan(Path indexFile) throws IOException, InterruptedException {
+        LibraryIndex previous = LibraryIndex.empty();
+        if (Files.exists(indexFile)) {
+            try {
+                previous = LibraryIndex.load(indexFile);
+            } catch (IOException e) {
+                // rebuilt from scratch below
+                e.printStackTrace();
+            }
+        }
+        Map<String, LibraryIndex.Entry> known = new HashMap<>();
+        for (LibraryIndex.Entry entry : previous.entries())
+            known.put(entry.getPath(), entry);
+
+        List<Path> files;
+        try (Stream<Path> walk = Files.walk(this.root)) {
+            files = walk.filter(Files::isRegularFile).filter(LibraryScanner::isAudioFile).toList();
+        }
+
+        this.probed = 0;
+        this.failed.clear();
+        List<LibraryIndex.Entry> entries = new ArrayList<>(files.size());
+        List<Future<LibraryIndex.Entry>> pending = new ArrayList<>();
+        ExecutorService executor = Executors.newFixedThreadPool(this.threads, runnable -> {
+            Thread thread = new Thread(runnable, "library-scanner");
+            thread.setDaemon(true);
+            return thread;
+        });
+        try {
+            for (Path file : files) {
+                String path = this.relativize(file);
+                BasicFileAttributes attributes;
+                try {
+                    attributes = Files.readAttributes(file, BasicFileAttributes.class);
+                } catch (IOException e) {
+                    // deleted or not readable since the walk
+                    this.failed.add(file);
+                    continue;
+                }
+                long size = attributes.size();
+                long lastModified = attributes.lastModifiedTime().toMillis();
+
+                LibraryIndex.Entry entry = known.get(path);
+                if (entry != null && entry.getSize() == size && entry.getLastModified() == lastModified
+                        && (!this.measureLoudness || entry.getLoudness() != null)) {
+                    entries.add(entry);
+                    continue;
+                }
+                pending.add(executor.submit(() -> this.probe(file, path, size, lastModified)));
+            }
+
+            for (Future<LibraryIndex.Entry> future : pending) {
+                LibraryIndex.Entry entry = future.get();
+                if (entry != null)
+                    entries.add(entry);
+            }
+        } catch (ExecutionException e) {
+            throw new IOException(e.getCause());
+        } finally {
+            executor.shutdownNow();
+        }
+        this.probed = pending.size();
+
+        LibraryIndex.write(indexFile, entries);
+        return LibraryIndex.load(indexFile);
+    }
+
+    /**
+     * @return The amount of files probed by the last scan, the others were unchanged
+     */
+    public int getProbedCount() {
+        return probed;
+    }
+
+    /**
+     * @return The files of the last scan that could not be read, or not as a supported format
+     */
+    public List<Path> getFailed() {
+        return new ArrayList<>(failed);
+    }
+
+    /**
+     * Probes, measures and hashes one file. Any error reading the file puts it into the failed
+     * files instead of stopping the scan.
+     *
+     * @return The entry of the file, or {@code null} if it failed
+     */
+    private LibraryIndex.Entry probe(Path file, String path, long size, long lastModified) {
+        try {
+            StreamInfo info;
+            Loudness loudness = null;
+            InputData input = InputData.getInputData(new RandomAccessFile(file.toFile(), "r"));
+            try {
+                info = StreamInfo.probe(input);
+                if (this.measureLoudness)
+                    loudness = Loudness.measure(open(input, info));
+            } finally {
+                input.close();
+            }
+            return new LibraryIndex.Entry(path, size, lastModified, this.hash(file), info, loudness);
+        } catch (Exception e) {
+            this.failed.add(file);
+            return null;
+        }
+    }
+
+    private static org.hackyourlife.gcn.dsp.Stream open(InputData input, StreamInfo info) throws IOException, FileFormatException {
+        switch (info.getFormat()) {
+            case "BRSTM":
+                return new BRSTM(input);
+            case "BFSTM":
+                return new BFSTM(input);
+            case "RS03":
+                return new RS03(input);
+            default:
+                return new DSP(input);
+        }
+    }
+
+    private int hash(Path file) throws IOException {
+        CRC32C crc = new CRC32C();
+        ByteBuffer buffer = this.hashBuffer.get();
+        try (FileChannel channel = FileChannel.open(file, StandardOpenOption.READ)) {
+            buffer.clear();
+            while (channel.read(buffer) >= 0) {
+                buffer.flip();
+                crc.update(buffer);
+                buffer.clear();
+            }
+        }
+        return (int) crc.getValue();
+    }
+
+    private String relativize(Path file) {
+        return this.root.relativize(file).toString().replace(file.getFileSystem().getSeparator(), "/");
+    }
+
+    private static boolean isAudioFile(Path file) {
+        String name = file.getFileName().toString().toLowerCase(Locale.ROOT);
+        for (String extension : EXTENSIONS) {
+            if (name.endsWith(extension))
+                return true;
+        }
+        return false;
+    }
+}
@@ -0,0 +1,264 @@
+package org.hackyourlife.gcn.dsp.library;
+
+import org.hackyourlife.gcn.dsp.Stream;
+
+import java.util.Arrays;
+
+/**
+ * Integrated loudness and true peak of a stream, measured as in ITU-R BS.1770-4: K-weighted mean
+ * square over gated 400 ms blocks, and the peak of the signal oversampled four times. All channels
+ * are weighted equally, the files carry no speaker layout.
+ *
+ * <p>Measure a stream with {@link #measure(Stream)} or feed decoded samples to a {@link Meter};
+ * {@link LibraryScanner#setMeasureLoudness(boolean)} measures a whole library in parallel and
+ * keeps the results in the {@link LibraryIndex}.</p>
+ */
+public class Loudness {
+
+    /** Loudness normalized files are played at by default, in LUFS */
+    public static final float DEFAULT_TARGET = -16.0F;
+    /** Highest true peak a normalization gain may lead to, in dBTP */
+    public static final float TRUE_PEAK_CEILING = -1.0F;
+
+    private final float integrated;
+    private final float truePeak;
+
+    /**
+     * @param integrated Integrated loudness in LUFS, negative infinity for silence
+     * @param truePeak True peak in dBTP, negative infinity for silence
+     */
+    public Loudness(float integrated, float truePeak) {
+        this.integrated = integrated;
+        this.truePeak = truePeak;
+    }
+
+    /**
+     * Decodes the stream once and measures it. Looping streams are measured up to their loop end.
+     * The stream is not closed.
+     */
+    public static Loudness measure(Stream stream) throws Exception {
+        Meter meter = new Meter(stream.getChannels(), stream.getSampleRate());
+        long end = stream.getLoopEndSample();
+        float[][] buffer = new float[stream.getChannels()][stream.getMaxBlockFrames()];
+        long position = 0;
+        while (stream.hasMoreData() && (end < 0 || position < end)) {
+            int frames = stream.decodePlanar(buffer);
+            if (frames <= 0)
+                break;
+            if (end >= 0)
+                frames = (int) Math.min(frames, end - position);
+            meter.add(buffer, 0, frames);
+            position += frames;
+        }
+        return meter.getLoudness();
+    }
+
+    /**
+     * @return The integrated loudness in LUFS, negative infinity if the stream is silent
+     */
+    public float getIntegrated() {
+        return integrated;
+    }
+
+    /**
+     * @return The true peak in dBTP, negative infinity if the stream is silent
+     */
+    public float getTruePeak() {
+        return truePeak;
+    }
+
+    /**
+     * The linear gain that brings the stream to the target loudness, reduced so its true peak
+     * stays below {@link #TRUE_PEAK_CEILING}. Silent streams are not changed.
+     *
+     * @param target Loudness in LUFS, e.g. {@link #DEFAULT_TARGET}
+     */
+    public float getGain(float target) {
+        if (Float.isInfinite(this.integrated) || Float.isNaN(this.integrated))
+            return 1.0F;
+        float decibels = target - this.integrated;
+        if (!Float.isInfinite(this.truePeak))
+            decibels = Math.min(decibels, TRUE_PEAK_CEILING - this.truePeak);
+        return (float) Math.pow(10, decibels / 20.0);
+    }
+
+    @Override
+    public String toString() {
+        return String.format("%.1f LUFS, %.1f dBTP", integrated, truePeak);
+    }
+
+    /**
+     * Measures samples as they are decoded, in one pass. Memory grows by one value per 100 ms of
+     * audio for the gating.
+     */
+    public static class Meter {
+        private static final double ABSOLUTE_GATE = -70.0;
+        private static final double RELATIVE_GATE = -10.0;
+        /** Gating blocks are 400 ms long and start every 100 ms */
+        private static final int STEPS_PER_BLOCK = 4;
+
+        /** Interpolation filter of BS.1770-4 Annex 2, four phases of 12 taps */
+        private static final double[][] OVERSAMPLING = {
+                {0.0017089843750, 0.0109863281250, -0.0196533203125, 0.0332031250000, -0.0594482421875, 0.1373291015625,
+                        0.9721679687500, -0.1022949218750, 0.0476074218750, -0.0266113281250, 0.0148925781250, -0.0083007812500},
+                {-0.0291748046875, 0.0292968750000, -0.0517578125000, 0.0891113281250, -0.1665039062500, 0.4650878906250,
+                        0.7797851562500, -0.2003173828125, 0.1015625000000, -0.0582275390625, 0.0330810546875, -0.0189208984375},
+                {-0.0189208984375, 0.0330810546875, -0.0582275390625, 0.1015625000000, -0.2003173828125, 0.7797851562500,
+                        0.4650878906250, -0.1665039062500, 0.0891113281250, -0.0517578125000, 0.0292968750000, -0.0291748046875},
+                {-0.0083007812500, 0.0148925781250, -0.0266113281250, 0.0476074218750, -0.1022949218750, 0.9721679687500,
+                        0.1373291015625, -0.0594482421875, 0.0332031250000, -0.0196533203125, 0.0109863281250, 0.0017089843750}
+        };
+        private static final int TAPS = 12;
+
+        private final int channels;
+        private final int stepFrames;
+
+        // K-weighting: high shelf followed by a high pass, coefficients normalized to a0
+        private final double shelfB0, shelfB1, shelfB2, shelfA1, shelfA2;
+        private final double passA1, passA2;
+        private final double[] state;
+
+        // true peak: the last TAPS samples of every channel, twice in a row so a window is contiguous
+        private final double[][] history;
+        private int historyPosition = 0;
+        private double peak = 0;
+
+        // mean square of the current step, and of the finished steps
+        private final double[] squares;
+        private int stepPosition = 0;
+        private double[] steps = new double[64];
+        private int stepCount = 0;
+
+        /**
+         * @param sampleRate Sample rate of the samples passed to {@link #add}
+         */
+        public Meter(int channels, long sampleRate) {
+            if (channels < 1 || sampleRate <= 0)
+                throw new IllegalArgumentException(channels + " channels at " + sampleRate + " Hz");
+            this.channels = channels;
+            this.stepFrames = (int) Math.max(1, Math.round(sampleRate / 10.0));
+
+            double k = Math.tan(Math.PI * 1681.974450955533 / sampleRate);
+            double q = 0.7071752369554196;
+            double vh = Math.pow(10, 3.999843853973347 / 20);
+            double vb = Math.pow(vh, 0.4996667741545416);
+            double a0 = 1 + k / q + k * k;
+            this.shelfB0 = (vh + vb * k / q + k * k) / a0;
+            this.shelfB1 = 2 * (k * k - vh) / a0;
+            this.shelfB2 = (vh - vb * k / q + k * k) / a0;
+            this.shelfA1 = 2 * (k * k - 1) / a0;
+            this.shelfA2 = (1 - k / q + k * k) / a0;
+
+            k = Math.tan(Math.PI * 38.13547087602444 / sampleRate);
+            q = 0.5003270373238773;
+            a0 = 1 + k / q + k * k;
+            this.passA1 = 2 * (k * k - 1) / a0;
+            this.passA2 = (1 - k / q + k * k) / a0;
+
+            this.state = new double[channels * 4];
+            this.history = new double[channels][TAPS * 2];
+            this.squares = new double[channels];
+        }
+
+        /**
+         * Adds planar samples in the range -1 to 1
+         */
+        public void add(float[][] samples, int offset, int frames) {
+            for (int i = offset; i < offset + frames; i++) {
+                for (int ch = 0; ch < this.channels; ch++) {
+                    double x = samples[ch][i];
+                    this.truePeak(ch, x);
+
+                    // direct form II, the high pass has b = {1, -2, 1}
+                    int s = ch * 4;
+                    double w = x - this.shelfA1 * this.state[s] - this.shelfA2 * this.state[s + 1];
+                    double y = this.shelfB0 * w + this.shelfB1 * this.state[s] + this.shelfB2 * this.state[s + 1];
+                    this.state[s + 1] = this.state[s];
+                    this.state[s] = w;
+                    w = y - this.passA1 * this.state[s + 2] - this.passA2 * this.state[s + 3];
+                    y = w - 2 * this.state[s + 2] + this.state[s + 3];
+                    this.state[s + 3] = this.state[s + 2];
+                    this.state[s + 2] = w;
+
+                    this.squares[ch] += y * y;
+                }
+                this.historyPosition = (this.historyPosition + 1) % TAPS;
+                if (++this.stepPosition == this.stepFrames)
+                    this.finishStep();
+            }
+        }
+
+        private void truePeak(int ch, double x) {
+            double[] history = this.history[ch];
+            int position = this.historyPosition;
+            history[position] = x;
+            history[position + TAPS] = x;
+            // the window of the newest TAPS samples, oldest first
+            int start = position + 1;
+            for (double[] phase : OVERSAMPLING) {
+                double sum = 0;
+                for (int t = 0; t < TAPS; t++)
+                    sum += phase[TAPS - 1 - t] * history[start + t];
+                this.peak = Math.max(this.peak, Math.abs(sum));
+            }
+            this.peak = Math.max(this.peak, Math.abs(x));
+        }
+
+        private void finishStep() {
+            double power = 0;
+            for (int ch = 0; ch < this.channels; ch++) {
+                power += this.squares[ch];
+                this.squares[ch] = 0;
+            }
+            if (this.stepCount == this.steps.length)
+                this.steps = Arrays.copyOf(this.steps, this.steps.length * 2);
+            this.steps[this.stepCount++] = power / this.stepFrames;
+            this.stepPosition = 0;
+        }
+
+        /**
+         * @return The loudness of the samples added so far; an unfinished last 100 ms are ignored
+         */
+        public Loudness getLoudness() {
+            int blocks = this.stepCount - STEPS_PER_BLOCK + 1;
+            double[] powers = new double[Math.max(blocks, 0)];
+            for (int b = 0; b < blocks; b++) {
+                double power = 0;
+                for (int s = 0; s < STEPS_PER_BLOCK; s++)
+                    power += this.steps[b + s];
+                powers[b] = power / STEPS_PER_BLOCK;
+            }
+
+            double gate = power(ABSOLUTE_GATE);
+            double mean = gatedMean(powers, gate);
+            if (mean > 0)
+                mean = gatedMean(powers, Math.max(gate, mean * Math.pow(10, RELATIVE_GATE / 10)));
+
+            float integrated = mean > 0 ? (float) (-0.691 + 10 * Math.log10(mean)) : Float.NEGATIVE_INFINITY;
+            float truePeak = this.peak > 0 ? (float) (20 * Math.log10(this.peak)) : Float.NEGATIVE_INFINITY;
+            return new Loudness(integrated, truePeak);
+        }
+
+        /**
+         * @return The mean square a loudness in LUFS corresponds to
+         */
+        private static double power(double lufs) {
+            return Math.pow(10, (lufs + 0.691) / 10);
+        }
+
+        /**
+         * @return The mean of the block powers above the gate, 0 if there is none
+         */
+        private static double gatedMean(double[] powers, double gate) {
+            double sum = 0;
+            int count = 0;
+            for (double power : powers) {
+                if (power > gate) {
+                    sum += power;
+                    count++;
+                }
+            }
+            return count > 0 ? sum / count : 0;
+        }
+    }
+}
@@ -0,0 +1,434 @@
+package org.hackyourlife.gcn.dsp.library;
+
+import org.hackyourlife.gcn.dsp.Asset;
+import org.hackyourlife.gcn.dsp.BlockIndex;
+import org.hackyourlife.gcn.dsp.FileFormatException;
+import org.hackyourlife.gcn.dsp.input.InputData;
+
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
+
+/**
+ * Waveform overview of a file: minimum, maximum and RMS of every channel at several zoom levels.
+ * The finest level summarizes {@value #BUCKET_SAMPLES} samples per bucket, every further level
+ * {@value #FACTOR} buckets of the level below, down to a single bucket. Drawing an overview only
+ * reads the level closest to the requested resolution, see {@link #render}.
+ *
+ * <p>The pyramid is computed in one decode pass ({@link #analyze}) and stored in a sidecar file
+ * next to the audio file ({@link #getSidecar(Path)}), which is memory mapped when loaded.</p>
+ *
+ * <p>Sidecar layout (big-endian): a 32 byte header ({@code "WFRM"}, version, channels, levels,
+ * factor, samples per bucket of the finest level, sample rate, sample count), followed by the
+ * levels from the finest to the coarsest, each channel after the other, with a minimum, maximum and
+ * RMS value (16 bit each) per bucket.</p>
+ */
+public class Waveform {
+
+    private static final int MAGIC = 0x5746524D; // "WFRM"
+    private static final int VERSION = 1;
+    private static final int HEADER_SIZE = 32;
+    private static final int BUCKET_SIZE = 6;
+
+    /** Samples per bucket of the finest level */
+    public static final int BUCKET_SAMPLES = 256;
+    /** Buckets of a level combined into one bucket of the next level */
+    public static final int FACTOR = 4;
+
+    /** Blocks decoded by one task when the blocks can be decoded independently */
+    private static final int SEGMENT_BLOCKS = 16;
+
+    private static final String SIDECAR_EXTENSION = ".wfrm";
+
+    private final ByteBuffer data;
+    private final int channels;
+    private final long sampleRate;
+    private final long sampleCount;
+    private final int[] bucketCounts;
+    private final int[] levelOffsets;
+
+    private Waveform(ByteBuffer data) throws IOException {
+        this.data = data;
+        if (data.capacity() < HEADER_SIZE || data.getInt(0) != MAGIC)
+            throw new IOException("Not a waveform");
+        if (data.getInt(4) != VERSION)
+            throw new IOException("Unsupported waveform version " + data.getInt(4));
+        this.channels = data.getShort(8) & 0xFFFF;
+        int levels = data.getShort(10) & 0xFFFF;
+        if (data.getInt(12) != FACTOR || data.getInt(16) != BUCKET_SAMPLES)
+            throw new IOException("Unsupported waveform resolution");
+        this.sampleRate = data.getInt(20) & 0xFFFFFFFFL;
+        this.sampleCount = data.getLong(24);
+
+        this.bucketCounts = bucketCounts(this.sampleCount);
+        if (levels != this.bucketCounts.length)
+            throw new IOException("Waveform levels do not match its sample count");
+        this.levelOffsets = new int[levels];
+        long offset = HEADER_SIZE;
+        for (int level = 0; level < levels; level++) {
+            this.levelOffsets[level] = (int) offset;
+            offset += (long) this.bucketCounts[level] * BUCKET_SIZE * this.channels;
+        }
+        if (offset != data.capacity())
+            throw new IOException("Waveform is truncated");
+    }
+
+    /**
+     * @return The amount of buckets of every level for a stream with {@code sampleCount} samples
+     */
+    private static int[] bucketCounts(long sampleCount) {
+        List<Integer> counts = new ArrayList<>();
+        long count = (sampleCount + BUCKET_SAMPLES - 1) / BUCKET_SAMPLES;
+        counts.add((int) count);
+        while (count > 1) {
+            count = (count + FACTOR - 1) / FACTOR;
+            counts.add((int) count);
+        }
+        return counts.stream().mapToInt(Integer::intValue).toArray();
+    }
+
+    /**
+     * @return The sidecar file of an audio file, {@code name.brstm.wfrm} next to it
+     */
+    public static Path getSidecar(Path audioFile) {
+        return audioFile.resolveSibling(audioFile.getFileName() + SIDECAR_EXTENSION);
+    }
+
+    /**
+     * Maps a sidecar file
+     *
+     * @throws IOException If the file can not be read or is not a waveform
+     */
+    public static Waveform load(Path file) throws IOException {
+        ByteBuffer data;
+        try (FileChannel channel = FileChannel.open(file, StandardOpenOption.READ)) {
+            data = channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+        }
+        data.order(ByteOrder.BIG_ENDIAN);
+        try {
+            return new Waveform(data);
+        } catch (IOException e) {
+            throw new IOException(e.getMessage() + ": " + file);
+        }
+    }
+
+    /**
+     * Loads the sidecar of an audio file if it is newer than the file, otherwise analyzes the file
+     * and writes its sidecar. Only BRSTM, BFSTM and RS03 files can be analyzed.
+     */
+    public static Waveform loadOrAnalyze(Path audioFile, ExecutorService executor) throws IOException, FileFormatException, InterruptedException {
+        Path sidecar = getSidecar(audioFile);
+        if (Files.exists(sidecar) && Files.getLastModifiedTime(sidecar).compareTo(Files.getLastModifiedTime(audioFile)) >= 0) {
+            try {
+                return load(sidecar);
+            } catch (IOException e) {
+                // analyzed again below
+                e.printStackTrace();
+            }
+        }
+
+        Asset asset = Asset.load(InputData.getInputData(new RandomAccessFile(audioFile.toFile(), "r")));
+        Waveform waveform;
+        try {
+            waveform = analyze(asset, executor);
+        } finally {
+            asset.close();
+        }
+        waveform.write(sidecar);
+        return waveform;
+    }
+
+    /**
+     * Decodes the asset once and computes its pyramid. The channels are decoded by separate tasks
+     * on the executor; files storing the decoder history of their blocks (BRSTM with an ADPC chunk)
+     * are additionally split into runs of {@value #SEGMENT_BLOCKS} blocks. Loops are ignored, the
+     * whole stream is analyzed.
+     */
+    public static Waveform analyze(Asset asset, ExecutorService executor) throws IOException, InterruptedException {
+        int channels = asset.getChannels();
+        BlockIndex index = asset.getBlockIndex();
+        long sampleCount = index.getSampleCount();
+        int buckets = (int) ((sampleCount + BUCKET_SAMPLES - 1) / BUCKET_SAMPLES);
+
+        Accumulator[] accumulators = new Accumulator[channels];
+        for (int ch = 0; ch < channels; ch++)
+            accumulators[ch] = new Accumulator(buckets);
+
+        int segment = asset.hasBlockHistory() ? SEGMENT_BLOCKS : Math.max(index.getBlockCount(), 1);
+        List<Future<?>> pending = new ArrayList<>();
+        try {
+            for (int ch = 0; ch < channels; ch++) {
+                for (int block = 0; block < index.getBlockCount(); block += segment) {
+                    Asset.ChannelDecoder decoder = asset.openChannel(ch, block);
+                    Accumulator accumulator = accumulators[ch];
+                    int last = Math.min(block + segment, index.getBlockCount());
+                    pending.add(executor.submit(() -> {
+                        accumulator.add(decoder, last, index);
+                        return null;
+                    }));
+                }
+            }
+            for (Future<?> future : pending)
+                future.get();
+        } catch (ExecutionException e) {
+            if (e.getCause() instanceof IOException)
+                throw (IOException) e.getCause();
+            throw new IOException(e.getCause());
+        } finally {
+            for (Future<?> future : pending)
+                future.cancel(true);
+        }
+
+        return build(asset.getSampleRate(), sampleCount, accumulators);
+    }
+
+    /**
+     * Writes the levels, computing the coarser levels from the sums of the finest one
+     */
+    private static Waveform build(long sampleRate, long sampleCount, Accumulator[] accumulators) throws IOException {
+        int channels = accumulators.length;
+        int[] counts = bucketCounts(sampleCount);
+        long size = HEADER_SIZE;
+        for (int count : counts)
+            size += (long) count * BUCKET_SIZE * channels;
+        if (size > Integer.MAX_VALUE)
+            throw new IOException("Waveform too large");
+
+        ByteBuffer data = ByteBuffer.allocate((int) size);
+        data.putInt(MAGIC).putInt(VERSION).putShort((short) channels).putShort((short) counts.length);
+        data.putInt(FACTOR).putInt(BUCKET_SAMPLES).putInt((int) sampleRate).putLong(sampleCount);
+
+        long bucketSamples = BUCKET_SAMPLES;
+        for (int level = 0; level < counts.length; level++) {
+            for (Accumulator accumulator : accumulators) {
+                for (int bucket = 0; bucket < counts[level]; bucket++) {
+                    long samples = Math.min(bucketSamples, sampleCount - bucket * bucketSamples);
+                    data.putShort((short) accumulator.min[bucket]);
+                    data.putShort((short) accumulator.max[bucket]);
+                    data.putShort((short) Math.round(Math.sqrt(accumulator.squares[bucket] / (double) samples)));
+                }
+                accumulator.reduce(counts[level]);
+            }
+            bucketSamples *= FACTOR;
+        }
+        data.flip();
+        return new Waveform(data);
+    }
+
+    /**
+     * Writes the pyramid to {@code file}, replacing it atomically
+     */
+    public void write(Path file) throws IOException {
+        ByteBuffer data = this.data.duplicate();
+        data.clear();
+        Path temp = file.resolveSibling(file.getFileName() + ".tmp");
+        try (FileChannel channel = FileChannel.open(temp, StandardOpenOption.CREATE, StandardOpenOption.WRITE, StandardOpenOption.TRUNCATE_EXISTING)) {
+            while (data.hasRemaining())
+                channel.write(data);
+        }
+        Files.move(temp, file, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+    }
+
+    public int getChannels() {
+        return channels;
+    }
+
+    public long getSampleRate() {
+        return sampleRate;
+    }
+
+    public long getSampleCount() {
+        return sampleCount;
+    }
+
+    /**
+     * @return The amount of levels, level 0 is the finest
+     */
+    public int getLevelCount() {
+        return bucketCounts.length;
+    }
+
+    public int getBucketCount(int level) {
+        return bucketCounts[level];
+    }
+
+    /**
+     * @return The samples summarized by one bucket of the level
+     */
+    public long getBucketSamples(int level) {
+        long samples = BUCKET_SAMPLES;
+        for (int i = 0; i < level; i++)
+            samples *= FACTOR;
+        return samples;
+    }
+
+    public short getMin(int level, int channel, int bucket) {
+        return this.data.getShort(this.offset(level, channel, bucket));
+    }
+
+    public short getMax(int level, int channel, int bucket) {
+        return this.data.getShort(this.offset(level, channel, bucket) + 2);
+    }
+
+    public short getRms(int level, int channel, int bucket) {
+        return this.data.getShort(this.offset(level, channel, bucket) + 4);
+    }
+
+    private int offset(int level, int channel, int bucket) {
+        if (channel < 0 || channel >= this.channels)
+            throw new IndexOutOfBoundsException("Channel " + channel + " of " + this.channels);
+        if (bucket < 0 || bucket >= this.bucketCounts[level])
+            throw new IndexOutOfBoundsException("Bucket " + bucket + " of " + this.bucketCounts[level]);
+        return this.levelOffsets[level] + (channel * this.bucketCounts[level] + bucket) * BUCKET_SIZE;
+    }
+
+    /**
+     * Summarizes a range of a channel in columns, reading the coarsest level whose buckets are not
+     * larger than a column. A column covers the buckets starting in it; the RMS of a column is
+     * computed from the RMS values of its buckets.
+     *
+     * @param start First sample of the range
+     * @param end Sample after the range
+     * @param min Minimum of every column, at least {@code columns} long
+     * @param max Maximum of every column
+     * @param rms RMS of every column
+     * @return The level that was read
+     */
+    public int render(int channel, long start, long end, int columns, short[] min, short[] max, short[] rms) {
+        start = Math.max(start, 0);
+        end = Math.min(end, this.sampleCount);
+        if (columns <= 0 || end <= start) {
+            Arrays.fill(min, 0, Math.max(columns, 0), (short) 0);
+            Arrays.fill(max, 0, Math.max(columns, 0), (short) 0);
+            Arrays.fill(rms, 0, Math.max(columns, 0), (short) 0);
+            return 0;
+        }
+
+        double perColumn = (double) (end - start) / columns;
+        int level = 0;
+        while (level + 1 < this.bucketCounts.length && this.getBucketSamples(level + 1) <= perColumn)
+            level++;
+        long bucketSamples = this.getBucketSamples(level);
+        int count = this.bucketCounts[level];
+
+        for (int column = 0; column < columns; column++) {
+            long first = start + (long) (column * perColumn);
+            long last = start + (long) ((column + 1) * perColumn);
+            int bucket = (int) Math.min(first / bucketSamples, count - 1);
+            int lastBucket = (int) Math.min(Math.max((last - 1) / bucketSamples, bucket), count - 1);
+            int low = Short.MAX_VALUE;
+            int high = Short.MIN_VALUE;
+            double squares = 0;
+            for (int b = bucket; b <= lastBucket; b++) {
+                int offset = this.offset(level, channel, b);
+                low = Math.min(low, this.data.getShort(offset));
+                high = Math.max(high, this.data.getShort(offset + 2));
+                double value = this.data.getShort(offset + 4);
+                squares += value * value;
+            }
+            min[column] = (short) low;
+            max[column] = (short) high;
+            rms[column] = (short) Math.round(Math.sqrt(squares / (lastBucket - bucket + 1)));
+        }
+        return level;
+    }
+
+    /**
+     * Minimum, maximum and sum of squares of the buckets of one channel, filled by the decoding
+     * tasks. Buckets at the edge of a task may be shared with the neighbouring task and are merged
+     * under the accumulator's lock, all others belong to one task.
+     */
+    private static class Accumulator {
+        private final int[] min;
+        private final int[] max;
+        private final long[] squares;
+
+        private Accumulator(int buckets) {
+            this.min = new int[buckets];
+            this.max = new int[buckets];
+            this.squares = new long[buckets];
+            Arrays.fill(this.min, Short.MAX_VALUE);
+            Arrays.fill(this.max, Short.MIN_VALUE);
+        }
+
+        /**
+         * Decodes the blocks up to {@code last} (exclusive) and adds their samples
+         */
+        private void add(Asset.ChannelDecoder decoder, int last, BlockIndex index) throws IOException {
+            short[] pcm = new short[index.getSamplesPerBlock()];
+            long position = index.getFirstSample(decoder.getBlock());
+            long start = position;
+            int firstBucket = (int) (position / BUCKET_SAMPLES);
+
+            int bucket = firstBucket;
+            int low = Short.MAX_VALUE;
+            int high = Short.MIN_VALUE;
+            long sum = 0;
+            while (decoder.getBlock() < last) {
+                int samples = decoder.decode(pcm);
+                for (int i = 0; i < samples; i++, position++) {
+                    int b = (int) (position / BUCKET_SAMPLES);
+                    if (b != bucket) {
+                        this.merge(bucket, low, high, sum, bucket == firstBucket);
+                        bucket = b;
+                        low = Short.MAX_VALUE;
+                        high = Short.MIN_VALUE;
+                        sum = 0;
+                    }
+                    int sample = pcm[i];
+                    low = Math.min(low, sample);
+                    high = Math.max(high, sample);
+                    sum += sample * sample;
+                }
+            }
+            // the last bucket may continue in the next task
+            if (position > start)
+                this.merge(bucket, low, high, sum, true);
+        }
+
+        private void merge(int bucket, int low, int high, long sum, boolean shared) {
+            if (shared) {
+                synchronized (this) {
+                    this.merge(bucket, low, high, sum, false);
+                }
+                return;
+            }
+            this.min[bucket] = Math.min(this.min[bucket], low);
+            this.max[bucket] = Math.max(this.max[bucket], high);
+            this.squares[bucket] += sum;
+        }
+
+        /**
+         * Combines every {@link #FACTOR} buckets into the first {@code count / FACTOR} entries,
+         * for the next level
+         */
+        private void reduce(int count) {
+            int next = (count + FACTOR - 1) / FACTOR;
+            for (int bucket = 0; bucket < next; bucket++) {
+                int low = Short.MAX_VALUE;
+                int high = Short.MIN_VALUE;
+                long sum = 0;
+                for (int b = bucket * FACTOR; b < Math.min(bucket * FACTOR + FACTOR, count); b++) {
+                    low = Math.min(low, this.min[b]);
+                    high = Math.max(high, this.max[b]);
+                    sum += this.squares[b];
+                }
+                this.min[bucket] = low;
+                this.max[bucket] = high;
+                this.squares[bucket] = sum;
+            }
+        }
+    }
+}
@@ -0,0 +1,56 @@
+package org.hackyourlife.gcn.dsp.player;
+
+/**
+ * Destination of the mixed 16 bit PCM of a {@link BrstmPlayer}. The player opens the sink,
+ * primes it with a first period, starts it and then writes one period after another from its
+ * playback thread.
+ */
+public interface AudioSink {
+
+    /**
+     * @param channels Amount of output channels
+     * @param nativeRate Sample rate of the stream
+     * @return The sample rate the sink should be opened at
+     */
+    default int getPreferredSampleRate(int channels, int nativeRate) {
+        return nativeRate;
+    }
+
+    /**
+     * Checked before {@link #open}, the player prefers the host's byte order so samples reach the
+     * device without another conversion
+     *
+     * @return If the sink can be opened for samples in this byte order
+     */
+    default boolean supportsByteOrder(int sampleRate, int channels, boolean bigEndian) {
+        return true;
+    }
+
+    /**
+     * Opens the sink for interleaved signed 16 bit samples, closing it first if it is open
+     *
+     * @param bufferBytes Requested size of the sink's buffer
+     */
+    void open(int sampleRate, int channels, boolean bigEndian, int bufferBytes) throws Exception;
+
+    /**
+     * Writes samples, blocking while the sink's buffer is full
+     *
+     * @return The amount of bytes written
+     */
+    int write(byte[] data, int off, int len);
+
+    /**
+     * @return The frames played since the sink was opened, or -1 if the sink cannot tell. Called
+     *         from any thread.
+     */
+    default long getFramePosition() {
+        return -1;
+    }
+
+    void start();
+
+    void stop();
+
+    void close();
+}
@@ -1,10 +1,21 @@
 package org.hackyourlife.gcn.dsp.player;
 
-import org.hackyourlife.gcn.dsp.AsyncDecoder;
+import org.hackyourlife.gcn.dsp.InterleavedStream;
+import org.hackyourlife.gcn.dsp.PCM;
 import org.hackyourlife.gcn.dsp.Stream;
-
-import javax.sound.sampled.*;
-import java.lang.reflect.Field;
+import org.hackyourlife.gcn.dsp.TrackInfo;
+
+import java.io.IOException;
+import java.util.ArrayDeque;
+import java.util.Arrays;
+import java.util.Deque;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
 
 /**
  * Created by Nick on 11 dec. 2019.
@@ -12,13 +23,58 @@ import java.lang.reflect.Field;
  */
 public class BrstmPlayer {
 
-    private Stream stream;
+    /** Duration of a volume change */
+    private static final float VOLUME_RAMP_SECONDS = 0.02F;
+    /** Frames mixed per write to the line */
+    private static final int PERIOD_FRAMES = 1024;
+    /** Stream frames decoded on the calling thread by {@link #prepare()} */
+    private static final int PREROLL_FRAMES = 2048;
+
+    private volatile Stream stream;
     private Thread asyncThread;
     private boolean paused = false;
     private int track;
-    private AsyncDecoder decoder;
-    private SourceDataLine waveout;
-    private boolean shouldStop = false;
+    private AudioSink sink = new LineSink();
+    private volatile boolean shouldStop = false;
+    private float outputSampleRate = 0;
+    private Resampler.Quality quality = Resampler.Quality.MEDIUM;
+    private float volume = 1.0F;
+    private float normalization = 1.0F;
+    private int rampFrames;
+
+    private boolean prepared = false;
+    private byte[] buffer;
+    private long prepareNanos;
+    private long startNanos;
+
+    // position, segments are written by the playback thread and read from any thread
+    private final PlaybackClock clock = new PlaybackClock();
+    private volatile long framesWritten;
+    private long framesRendered;
+    private long fadeStart;
+
+    // playlist
+    private final Deque<QueueEntry> queue = new ArrayDeque<>();
+    private ExecutorService prefetcher;
+    private Future<Deck> next;
+    private float crossfade = 0.0F;
+    private volatile boolean skipRequested = false;
+
+    // track fades requested from any thread: track -> {gain, seconds}
+    private final Map<Integer, float[]> trackRequests = new HashMap<>();
+    private volatile boolean tracksChanged = false;
+
+    // owned by the playback thread
+    private volatile Deck current;
+    private int lineRate;
+    private int lineChannels;
+    private boolean lineBigEndian;
+    private boolean fading = false;
+    private int fadePosition;
+    private int fadeLength;
+    private float[][] currentBuffer;
+    private float[][] nextBuffer;
+    private float[] accumulator;
 
     /**
      * Constructor for the brstm player
@@ -35,38 +91,145 @@ public class BrstmPlayer {
     }
 
     /**
-     * Starts the audio player
+     * Prepares playback without starting it: opens the line, decodes a short first chunk on the
+     * calling thread and writes it to the line. A following {@link #start()} only has to start the
+     * line, so sound comes out right away.
      */
-    public void start() {
+    public void prepare() {
         // check if result isnt null
         if (this.stream == null) {
-            throw new NullPointerException("Cannot handle BRSTM player for an empty or undefined stream");
+            this.stream = this.takeQueued();
+            if (this.stream == null)
+                throw new NullPointerException("Cannot handle BRSTM player for an empty or undefined stream");
         }
 
-        // if audio is already playing it resets
+        long begin = System.nanoTime();
+        if (this.open(this.stream))
+            this.prepareNanos = System.nanoTime() - begin;
+    }
+
+    /**
+     * Replaces the sound device output, e.g. by a {@link NullSink}. Takes effect with the next
+     * {@link #prepare()} or {@link #start()}.
+     */
+    public void setAudioSink(AudioSink sink) {
+        if (sink == null)
+            throw new NullPointerException("sink");
+        this.sink = sink;
+    }
+
+    public AudioSink getAudioSink() {
+        return sink;
+    }
+
+    /**
+     * Starts the audio player
+     */
+    public void start() {
+        long begin = System.nanoTime();
+        if (!this.prepared) {
+            this.prepare();
+            if (!this.prepared)
+                return;
+        }
 
         // starting the brstm file
         paused = false;
         shouldStop = false;
-        this.decoder = new AsyncDecoder(stream);
-        this.decoder.start();
-        this.play(decoder);
+        this.prepared = false;
+        this.sink.start();
+        this.startNanos = System.nanoTime() - begin;
+        this.play();
+    }
+
+    /**
+     * @return The time the last {@link #start()} took until the line was playing, in nanoseconds.
+     *         Includes {@link #prepare()} if it was not called beforehand.
+     */
+    public long getStartLatencyNanos() {
+        return startNanos;
+    }
+
+    /**
+     * @return The time the last {@link #prepare()} took, in nanoseconds
+     */
+    public long getPrepareNanos() {
+        return prepareNanos;
+    }
+
+    /**
+     * The sample of the current stream that is being heard right now, taken from the frame position
+     * of the sink and wrapped at the stream's loop. Streams switched to by the playlist count from
+     * the output frame they started at, so the position stays right while the line still plays
+     * the end of the previous stream. Does not lock and may be called at any rate from any thread.
+     *
+     * @return The sample position in the stream's sample rate, or -1 if nothing is playing
+     */
+    public long getPlaybackPositionSamples() {
+        if (this.current == null)
+            return -1;
+        return this.clock.getPosition(this.getPlayedFrames());
     }
 
     /**
-     * Stops the audio player
+     * @return The time until frames written to the sink now are heard, from the frames the sink
+     *         has buffered, in nanoseconds
+     */
+    public long getOutputLatencyNanos() {
+        int rate = this.lineRate;
+        if (rate <= 0)
+            return 0;
+        long buffered = this.framesWritten - this.getPlayedFrames();
+        return Math.max(buffered, 0) * 1_000_000_000L / rate;
+    }
+
+    private long getPlayedFrames() {
+        long played = this.sink.getFramePosition();
+        return played < 0 ? this.framesWritten : played;
+    }
+
+    /**
+     * Stops the audio player. Only signals the playback thread and waits for it, the thread stops
+     * the line and the decoder before the stream is reset.
      */
     public void stop() {
         this.shouldStop = true;
-        this.asyncThread.interrupt();
-        waveout.stop();
+        this.prepared = false;
+        Thread thread = this.asyncThread;
+        if (thread != null && thread != Thread.currentThread() && thread.isAlive()) {
+            thread.interrupt();
+            try {
+                thread.join();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+            return;
+        }
+        this.tearDown();
+    }
 
-        try {
-            // resets position back to 0
-            Field field = stream.getClass().getDeclaredField("current_byte");
-            field.setAccessible(true);
-            field.setLong(stream, 0);
-        } catch (NoSuchFieldException | IllegalAccessException ignored) {}
+    /**
+     * Stops the line and the current deck and resets the stream; runs on the playback thread when
+     * it ends, or on the caller if there is none
+     */
+    private void tearDown() {
+        this.sink.stop();
+
+        Deck deck = this.current;
+        if (deck != null) {
+            // waits for the decoder thread, so it no longer uses the stream
+            deck.stop();
+            this.current = null;
+        }
+
+        if (stream instanceof InterleavedStream) {
+            try {
+                // resets position back to 0
+                ((InterleavedStream) stream).reset();
+            } catch (IOException e) {
+                e.printStackTrace();
+            }
+        }
     }
 
     /**
@@ -86,15 +249,125 @@ public class BrstmPlayer {
     /**
      * Change the volume of the audio player
      * If percentage isnt between 0.0F and 1.0F it forces it to. using {@code Math.max(0.0F, Math.min(1.0F, percentage))}
+     * The gain is applied in software and ramped over a few milliseconds, so it works on every line and does not click.
      *
      * @param percentage between 0.0F and 1.0F
      */
     public void setVolume(float percentage) {
-        percentage = Math.max(0.0F, Math.min(1.0F, percentage));
+        this.volume = Math.max(0.0F, Math.min(1.0F, percentage));
+
+        Deck deck = this.current;
+        if (deck != null && !this.fading)
+            deck.getMixer().setMasterGain(this.gain(deck), this.rampFrames);
+    }
+
+    /**
+     * Sets the loudness normalization gain of the playing stream, e.g. from
+     * {@link org.hackyourlife.gcn.dsp.library.LibraryIndex.Entry#getNormalizationGain(float)}. It is
+     * applied together with the volume in the mixer, so it costs nothing extra per sample, and is
+     * ramped like a volume change. Queued streams have their own gain, see
+     * {@link #enqueue(Callable, float)}.
+     *
+     * @param gain Linear amplitude factor, may be larger than 1
+     */
+    public void setNormalizationGain(float gain) {
+        gain = Math.max(0.0F, gain);
+        Deck deck = this.current;
+        if (deck == null) {
+            this.normalization = gain;
+            return;
+        }
+        deck.setNormalization(gain);
+        if (!this.fading)
+            deck.getMixer().setMasterGain(this.gain(deck), this.rampFrames);
+    }
+
+    /**
+     * @return The loudness normalization gain of the playing stream
+     */
+    public float getNormalizationGain() {
+        Deck deck = this.current;
+        return deck != null ? deck.getNormalization() : this.normalization;
+    }
+
+    /**
+     * @return The tracks of the playing stream: the track table of the file, or one track per
+     *         channel pair if it has none. {@code null} if nothing is playing.
+     */
+    public TrackInfo[] getTracks() {
+        Deck deck = this.current;
+        return deck != null ? deck.getTracks().clone() : null;
+    }
+
+    /**
+     * Fades a track of the playing stream in or out, e.g. a layer of adaptive music. The ramp is
+     * sample accurate and starts with the next period; a track that was silent long enough to not
+     * be decoded any more starts its fade as soon as it is decoded again. The gain is applied on
+     * top of the track's volume and pan from the track table and only applies to the current stream.
+     *
+     * @param track Index into {@link #getTracks()}
+     * @param gain Linear amplitude factor, 0 mutes the track
+     * @param seconds Length of the fade
+     */
+    public void setTrackGain(int track, float gain, float seconds) {
+        synchronized (this.trackRequests) {
+            this.trackRequests.put(track, new float[]{Math.max(0.0F, gain), Math.max(0.0F, seconds)});
+            this.tracksChanged = true;
+        }
+    }
+
+    /**
+     * @return The gain of a track set by {@link #setTrackGain}, 1 for tracks that were not changed
+     */
+    public float getTrackGain(int track) {
+        synchronized (this.trackRequests) {
+            float[] request = this.trackRequests.get(track);
+            if (request != null)
+                return request[0];
+        }
+        Deck deck = this.current;
+        if (deck == null || track < 0 || track >= deck.getTracks().length)
+            return 1.0F;
+        return deck.getTrackGain(track);
+    }
+
+    /**
+     * Mutes a track with a short ramp, see {@link #setTrackGain}
+     */
+    public void muteTrack(int track) {
+        this.setTrackGain(track, 0.0F, VOLUME_RAMP_SECONDS);
+    }
+
+    /**
+     * Unmutes a track with a short ramp, see {@link #setTrackGain}
+     */
+    public void unmuteTrack(int track) {
+        this.setTrackGain(track, 1.0F, VOLUME_RAMP_SECONDS);
+    }
+
+    /**
+     * @return The volume between 0.0F and 1.0F
+     */
+    public float getVolume() {
+        return volume;
+    }
 
-        FloatControl gain = (FloatControl) this.waveout.getControl(FloatControl.Type.MASTER_GAIN);
-        float dB = (float) (Math.log(percentage) / Math.log(gain.getMaximum()) * 20);
-        gain.setValue(dB);
+    /**
+     * Sets the rate the output line is opened at, takes effect on the next {@link #start()}
+     *
+     * @param sampleRate The output sample rate in Hz, or 0 to use the device's preferred rate
+     */
+    public void setOutputSampleRate(float sampleRate) {
+        this.outputSampleRate = sampleRate;
+    }
+
+    /**
+     * Sets the resampling quality used when the stream and output rate differ
+     *
+     * @param quality Filter quality
+     */
+    public void setResamplerQuality(Resampler.Quality quality) {
+        this.quality = quality;
     }
 
     /**
@@ -136,134 +409,427 @@ public class BrstmPlayer {
         } catch (Exception e) {
             e.printStackTrace();
         }
-        waveout.stop();
+        this.sink.stop();
+
+        synchronized (this.queue) {
+            this.queue.clear();
+            if (this.next != null) {
+                this.next.cancel(false);
+                try {
+                    this.next.get().close();
+                } catch (Exception ignored) {}
+                this.next = null;
+            }
+            if (this.prefetcher != null) {
+                this.prefetcher.shutdown();
+                this.prefetcher = null;
+            }
+        }
     }
 
     /**
-     * @param stream Decoder stream {@link AsyncDecoder}
+     * Adds a stream to the end of the playlist. It is opened and decoded ahead in the background
+     * when it is the next one, and played right after the current stream without a gap or with a
+     * crossfade, see {@link #setCrossfade(float)}. The player closes queued streams when they are done.
+     *
+     * @param stream The stream to play after the queued ones
      */
-    private void play(AsyncDecoder stream) {
+    public void enqueue(Stream stream) {
+        this.enqueue(() -> stream);
+    }
+
+    /**
+     * Adds a stream to the end of the playlist that is only opened when it is about to be played,
+     * so parsing its header does not happen on the calling thread.
+     *
+     * @param opener Opens the stream, e.g. {@code () -> new BRSTM(new RandomAccessFile(file, "r"))}
+     */
+    public void enqueue(Callable<? extends Stream> opener) {
+        this.enqueue(opener, 1.0F);
+    }
+
+    /**
+     * Adds a stream to the end of the playlist that is played with a loudness normalization gain,
+     * see {@link #setNormalizationGain(float)}
+     *
+     * @param opener Opens the stream, see {@link #enqueue(Callable)}
+     * @param normalizationGain Linear amplitude factor for this stream
+     */
+    public void enqueue(Callable<? extends Stream> opener, float normalizationGain) {
+        synchronized (this.queue) {
+            this.queue.add(new QueueEntry(opener, Math.max(0.0F, normalizationGain)));
+        }
+    }
+
+    /**
+     * Removes all streams from the playlist that are not prepared yet
+     */
+    public void clearQueue() {
+        synchronized (this.queue) {
+            this.queue.clear();
+        }
+    }
+
+    /**
+     * @return The amount of queued streams, including a prepared next stream
+     */
+    public int getQueueSize() {
+        synchronized (this.queue) {
+            return this.queue.size() + (this.next != null ? 1 : 0);
+        }
+    }
+
+    /**
+     * Moves on to the next stream of the playlist, with a crossfade if one is configured.
+     * Playback ends if the playlist is empty.
+     */
+    public void skip() {
+        this.skipRequested = true;
+    }
+
+    /**
+     * Sets the length of the equal-power crossfade between playlist entries.
+     * Streams that loop are faded out on {@link #skip()}, others fade out during their last seconds.
+     *
+     * @param seconds The crossfade length, 0 plays the streams back to back without a gap
+     */
+    public void setCrossfade(float seconds) {
+        this.crossfade = Math.max(0.0F, seconds);
+    }
+
+    public float getCrossfade() {
+        return crossfade;
+    }
+
+    /**
+     * Opens the line and primes it with the first frames of the stream
+     *
+     * @param stream The stream to start with
+     * @return If the line is ready to start
+     */
+    private boolean open(Stream stream) {
         try {
             int channels = stream.getChannels();
             if(channels > 2) {
                 channels = 2;
             }
-            AudioFormat format = new AudioFormat(
-                    AudioFormat.Encoding.PCM_SIGNED,	// encoding
-                    stream.getSampleRate(),			    // sample rate
-                    16,					// bit/sample
-                    channels,				            // channels
-                    2 * channels,
-                    stream.getSampleRate(),
-                    true					    // big-endian
-            );
-
-            DataLine.Info info = new DataLine.Info(SourceDataLine.class, format);
-            if(!AudioSystem.isLineSupported(info)) {
-                throw new Exception("Line matching " + info + " not supported");
-            }
-
-            this.waveout = (SourceDataLine) AudioSystem.getLine(info);
-            waveout.open(format, 16384);
-
-            waveout.start();
+            int sampleRate = this.outputSampleRate > 0 ? (int) this.outputSampleRate : this.sink.getPreferredSampleRate(channels, (int) stream.getSampleRate());
+            // the host's byte order if the sink takes it, so the samples are not swapped again on the way
+            boolean bigEndian = PCM.NATIVE_BIG_ENDIAN;
+            if (!this.sink.supportsByteOrder(sampleRate, channels, bigEndian))
+                bigEndian = !bigEndian;
+            this.sink.open(sampleRate, channels, bigEndian, 16384);
+            this.lineBigEndian = bigEndian;
+
+            this.lineRate = sampleRate;
+            this.lineChannels = channels;
+            this.rampFrames = (int) (sampleRate * VOLUME_RAMP_SECONDS);
+            this.fading = false;
+            this.skipRequested = false;
+            this.accumulator = new float[PERIOD_FRAMES * channels];
+            this.buffer = new byte[PERIOD_FRAMES * 2 * channels];
+            this.framesWritten = 0;
+            this.framesRendered = 0;
+            this.clock.reset();
+
+            // decode a short chunk right here, the decoder thread continues with full blocks after it
+            Deck deck = new Deck(stream, false, this.lineRate, channels, this.track, this.quality);
+            deck.setNormalization(this.normalization);
+            deck.getMixer().setMasterGain(this.gain(deck), 0);
+            deck.preroll(PREROLL_FRAMES);
+            deck.start();
+            this.current = deck;
+            this.begin(deck, 0);
+
+            // the line buffer holds the pre-roll, so this does not block
+            int frames = this.render(this.buffer, Math.min(PERIOD_FRAMES, deck.getBufferedFrames()));
+            this.sink.write(this.buffer, 0, frames * 2 * channels);
+            this.framesWritten = frames;
+
+            this.prepared = true;
+            return true;
+        } catch (Exception e) {
+            e.printStackTrace();
+            return false;
+        }
+    }
 
-            // setting up a async thread so the current doesn't freeze so other code in the same thread can continue
-            this.asyncThread = new Thread(() -> {
-                main: while(!shouldStop && stream.hasMoreData()) {
-                    if (stream.isInterrupted()) {
+    /**
+     * Starts the thread writing to the started line
+     */
+    private void play() {
+        int frameSize = 2 * this.lineChannels;
+        byte[] buffer = this.buffer;
+
+        // setting up a async thread so the current doesn't freeze so other code in the same thread can continue
+        this.asyncThread = new Thread(() -> {
+            main: while(!shouldStop) {
+                if (paused) {
+                    try {
+                        Thread.sleep(5);
+                    } catch (InterruptedException e) {
                         break;
                     }
+                    continue;
+                }
 
-                    if (paused)
-                        continue;
-
-                    byte[] buffer = new byte[0];
-                    try {
-                        buffer = stream.decode();
-                    } catch (Exception e) {
+                int length = 0;
+                try {
+                    length = this.render(buffer, PERIOD_FRAMES) * frameSize;
+                } catch (Exception e) {
+                    // stop() interrupts a render waiting for the decoder
+                    if (!shouldStop)
                         e.printStackTrace();
+                }
+                if (length == 0)
+                    break;
+
+                // write each frame individually to make sure pausing works at an instant.
+                for (int i = 0; i < length; i += frameSize) {
+                    if (shouldStop)
+                        break main;
+
+                    while (paused && !shouldStop) {
+                        try {
+                            Thread.sleep(5);
+                        } catch (InterruptedException e) {
+                            break main;
+                        }
                     }
-                    if (buffer == null || buffer.length == 0)
-                        continue;
-
-                    buffer = sum(buffer, stream.getChannels(), track);
+                    this.sink.write(buffer, i, frameSize);
+                    this.framesWritten++;
+                }
+            }
+            this.tearDown();
+        });
+        this.asyncThread.start();
+    }
 
-                    // write each byte individually to make sure pausing works at an instant.
-                    for (int i = 0; i < buffer.length; i+=4) {
-                        if (shouldStop)
-                            break main;
+    /**
+     * Mixes the next frames of the playlist into {@code out}
+     *
+     * @param period The amount of frames to mix, at most {@link #PERIOD_FRAMES}
+     * @return The amount of frames written, less than {@code period} when the playlist is done
+     */
+    private int render(byte[] out, int period) throws Exception {
+        int frameSize = 2 * this.lineChannels;
+        int frames = 0;
+        Deck playing = this.current;
+        if (playing != null) {
+            if (this.tracksChanged)
+                this.applyTrackRequests(playing);
+            playing.updateTracks();
+        }
 
-                        if (paused)
-                            break;
-                        waveout.write(new byte[] {
-                                buffer[i],
-                                buffer[i + 1],
-                                buffer[i + 2],
-                                buffer[i + 3]
-                        }, 0, 4);
-                    }
+        while (frames < period && this.current != null) {
+            Deck deck = this.current;
+            int wanted = period - frames;
+            this.currentBuffer = planar(this.currentBuffer, deck.getStream().getChannels());
+
+            // the next stream is prefetched as soon as this one plays, also without a crossfade,
+            // so switching to it at the end does not wait for it to be opened
+            Deck following = this.prepareNext(false);
+            if (following != null && this.crossfade > 0 && this.shouldFade(deck)) {
+                if (this.fadePosition == 0)
+                    this.fadeStart = this.framesRendered + frames;
+
+                // equal-power crossfade, the gains are ramped linearly within each chunk
+                this.nextBuffer = planar(this.nextBuffer, following.getStream().getChannels());
+                int count = Math.min(wanted, this.fadeLength - this.fadePosition);
+                int read = deck.read(this.currentBuffer, 0, count);
+                silence(this.currentBuffer, read, count);
+                silence(this.nextBuffer, following.read(this.nextBuffer, 0, count), count);
+
+                this.fadePosition += count;
+                double t = (double) this.fadePosition / this.fadeLength;
+                deck.getMixer().setMasterGain((float) (this.gain(deck) * Math.cos(t * Math.PI / 2)), count);
+                following.getMixer().setMasterGain((float) (this.gain(following) * Math.sin(t * Math.PI / 2)), count);
+
+                Arrays.fill(this.accumulator, 0, count * this.lineChannels, 0.0F);
+                deck.getMixer().processAdd(this.currentBuffer, 0, count, this.accumulator, 0);
+                following.getMixer().processAdd(this.nextBuffer, 0, count, this.accumulator, 0);
+                GainMixer.toPcm16(this.accumulator, 0, count * this.lineChannels, out, frames * frameSize, this.lineBigEndian);
+                frames += count;
+
+                if (this.fadePosition >= this.fadeLength || read < count) {
+                    following.getMixer().setMasterGain(this.gain(following), this.rampFrames);
+                    this.advance(deck, following, this.fadeStart);
                 }
-                this.stop();
-            });
-            this.asyncThread.start();
+                continue;
+            }
 
-        } catch (Exception e) {
-            e.printStackTrace();
+            int count = deck.read(this.currentBuffer, 0, wanted);
+            deck.getMixer().process(this.currentBuffer, 0, count, out, frames * frameSize, this.lineBigEndian);
+            frames += count;
+
+            if (count < wanted || this.skipRequested) {
+                // continue with the next stream in the same period, so there is no gap
+                following = this.prepareNext(true);
+                if (following != null)
+                    following.getMixer().setMasterGain(this.gain(following), 0);
+                this.advance(deck, following, this.framesRendered + frames);
+            }
         }
+        this.framesRendered += frames;
+        return frames;
     }
 
-    private byte[] sum(byte[] data, int channels, int track) {
-        if(channels == 1 || channels == 2) {
-            return data;
+    private void applyTrackRequests(Deck deck) {
+        synchronized (this.trackRequests) {
+            this.tracksChanged = false;
+            for (Map.Entry<Integer, float[]> request : this.trackRequests.entrySet()) {
+                int track = request.getKey();
+                if (track >= 0 && track < deck.getTracks().length)
+                    deck.setTrackGain(track, request.getValue()[0], (int) (request.getValue()[1] * this.lineRate));
+            }
+            this.trackRequests.clear();
         }
-        int samples = data.length / (channels * 2);
-        byte[] result = new byte[samples * 4]; // 2 channels, 16bit
-
-        // extract single (stereo) track?
-        if(track != -1) {
-            int ch = track * 2;
-            for(int i = 0; i < samples; i++) {
-                int lidx = (i * channels + ch) * 2;
-                int ridx = (i * channels + ch + 1) * 2;
-                result[i * 4    ] = data[lidx];
-                result[i * 4 + 1] = data[lidx + 1];
-                result[i * 4 + 2] = data[ridx];
-                result[i * 4 + 3] = data[ridx + 1];
+    }
+
+    private boolean shouldFade(Deck deck) {
+        if (this.fading)
+            return true;
+        int frames = (int) (this.crossfade * this.lineRate);
+        long remaining = deck.getRemainingFrames();
+        boolean skip = this.skipRequested;
+        if (!skip && (remaining < 0 || remaining > frames))
+            return false;
+
+        // a fade at the end of a stream has to finish with it
+        this.fading = true;
+        this.skipRequested = false;
+        this.fadePosition = 0;
+        this.fadeLength = Math.max(1, skip || remaining < 0 ? frames : (int) Math.min(remaining, frames));
+        return true;
+    }
+
+    /**
+     * @param startFrame The output frame the following stream's first frame was mixed into
+     */
+    private void advance(Deck finished, Deck following, long startFrame) {
+        finished.close();
+        if (following != null) {
+            synchronized (this.queue) {
+                this.next = null;
             }
-            return result;
         }
+        this.fading = false;
+        this.skipRequested = false;
+        this.current = following;
+        if (following != null) {
+            this.stream = following.getStream();
+            this.begin(following, startFrame);
+        }
+    }
 
-        // sum up all channels
-        for(int i = 0; i < samples; i++) {
-            int l = 0;
-            int r = 0;
-            for(int ch = 0; ch < channels; ch++) {
-                int idx = (i * channels + ch) * 2;
-                short val = (short) (Byte.toUnsignedInt(data[idx]) << 8 | Byte.toUnsignedInt(data[idx + 1]));
-                if((ch & 1) == 0) {
-                    l += val;
-                } else {
-                    r += val;
+    /**
+     * Starts counting the deck's stream position at an output frame
+     */
+    private void begin(Deck deck, long startFrame) {
+        Stream stream = deck.getStream();
+        this.clock.begin(startFrame, stream.getSampleRate(), this.lineRate, stream.getLoopStartSample(), stream.getLoopEndSample());
+    }
+
+    /**
+     * Returns the next stream of the playlist, starting to open and decode it in the background
+     * if that did not happen yet. It stays the next stream until {@link #advance} switches to it.
+     *
+     * @param wait If the call should wait for the stream to be ready
+     * @return The prepared stream, or {@code null} if there is none (yet)
+     */
+    private Deck prepareNext(boolean wait) {
+        Future<Deck> future;
+        synchronized (this.queue) {
+            if (this.next == null) {
+                QueueEntry entry = this.queue.poll();
+                if (entry == null)
+                    return null;
+                if (this.prefetcher == null) {
+                    this.prefetcher = Executors.newSingleThreadExecutor(r -> {
+                        Thread thread = new Thread(r, "BrstmPlayer prefetch");
+                        thread.setDaemon(true);
+                        return thread;
+                    });
                 }
+                int rate = this.lineRate;
+                int channels = this.lineChannels;
+                this.next = this.prefetcher.submit(() -> {
+                    Deck deck = new Deck(entry.opener.call(), true, rate, channels, this.track, this.quality);
+                    deck.setNormalization(entry.normalization);
+                    deck.getMixer().setMasterGain(0.0F, 0);
+                    // the first frames are ready when it is switched to, the decoder thread follows up
+                    deck.preroll(PREROLL_FRAMES);
+                    deck.start();
+                    return deck;
+                });
             }
-            // clamp
-            if(l < -32768) {
-                l = -32768;
-            } else if(l > 32767) {
-                l = 32767;
-            }
-            if(r < -32768) {
-                r = -32768;
-            } else if(r > 32767) {
-                r = 32767;
+            future = this.next;
+        }
+
+        if (!wait && !future.isDone())
+            return null;
+        try {
+            return future.get();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            return null;
+        } catch (ExecutionException e) {
+            // skip entries that cannot be opened
+            e.getCause().printStackTrace();
+            synchronized (this.queue) {
+                this.next = null;
             }
-            // write back
-            result[i * 4] = (byte) (l >> 8);
-            result[i * 4 + 1] = (byte) l;
-            result[i * 4 + 2] = (byte) (r >> 8);
-            result[i * 4 + 3] = (byte) r;
+            return this.prepareNext(wait);
+        }
+    }
+
+    /**
+     * Opens the first entry of the playlist on the calling thread
+     */
+    private Stream takeQueued() {
+        QueueEntry entry;
+        synchronized (this.queue) {
+            entry = this.queue.poll();
+        }
+        if (entry == null)
+            return null;
+        try {
+            this.normalization = entry.normalization;
+            return entry.opener.call();
+        } catch (Exception e) {
+            e.printStackTrace();
+            return this.takeQueued();
+        }
+    }
+
+    /**
+     * @return The master gain of a deck: the volume with the stream's normalization gain
+     */
+    private float gain(Deck deck) {
+        return this.volume * deck.getNormalization();
+    }
+
+    private static float[][] planar(float[][] buffer, int channels) {
+        if (buffer == null || buffer.length < channels)
+            return new float[channels][PERIOD_FRAMES];
+        return buffer;
+    }
+
+    private static void silence(float[][] buffer, int from, int to) {
+        for (float[] channel : buffer)
+            Arrays.fill(channel, from, to, 0.0F);
+    }
+
+    /**
+     * A playlist entry, opened when it is about to be played
+     */
+    private static class QueueEntry {
+        private final Callable<? extends Stream> opener;
+        private final float normalization;
+
+        private QueueEntry(Callable<? extends Stream> opener, float normalization) {
+            this.opener = opener;
+            this.normalization = normalization;
         }
-        return result;
     }
-}
\ No newline at end of file
+}
@@ -0,0 +1,318 @@
+package org.hackyourlife.gcn.dsp.player;
+
+import org.hackyourlife.gcn.dsp.AsyncDecoder;
+import org.hackyourlife.gcn.dsp.InterleavedStream;
+import org.hackyourlife.gcn.dsp.Stream;
+import org.hackyourlife.gcn.dsp.TrackInfo;
+
+import java.util.Arrays;
+
+/**
+ * One stream prepared for output: decoded ahead on its own thread, resampled to the line rate and
+ * routed to the line's channels by its own {@link GainMixer}. Frames are handed out in any amount,
+ * independent of the stream's block size, so several decks can be mixed or played back to back.
+ *
+ * <p>The channels are mixed by track, see {@link Stream#getTracks()}. Tracks can be faded at
+ * runtime; a track that stayed silent for {@link #IDLE_SECONDS} is no longer decoded if the stream
+ * supports it, and is resumed in time for a fade in.</p>
+ */
+class Deck {
+
+    /** Time a track has to be silent before its channels are no longer decoded */
+    static final float IDLE_SECONDS = 1.0F;
+
+    private final Stream stream;
+    private final boolean owned;
+    private AsyncDecoder decoder;
+    private final Resampler resampler;
+    private final GainMixer mixer;
+    private volatile float normalization = 1.0F;
+
+    private final float[][] decoded;
+    private final float[][] resampled;
+    private int offset = 0;
+    private int available = 0;
+
+    // tracks, owned by the playback thread
+    private final TrackInfo[] tracks;
+    private final float[] routing;
+    private final float[] trackGain;
+    private final long[] silentFrom;
+    private final boolean[] skipped;
+    private final boolean[] resuming;
+    private final int[] resumeRamp;
+    private final int idleFrames;
+    private long outputFrames = 0;
+
+    // stream frames, counted from the first frame decoded through the deck
+    private final long decodedBase;
+    private long decodedFrames = 0;
+    private long blockStart = 0;
+
+    /**
+     * @param owned If the stream is closed together with the deck
+     */
+    Deck(Stream stream, boolean owned, int outputRate, int outputChannels, int track, Resampler.Quality quality) {
+        this.stream = stream;
+        this.owned = owned;
+        this.resampler = new Resampler(stream.getChannels(), (int) stream.getSampleRate(), outputRate, quality);
+        TrackInfo[] tracks = stream.getTracks();
+        this.tracks = tracks != null ? tracks : TrackInfo.pairs(stream.getChannels());
+        this.mixer = GainMixer.createTracks(stream.getChannels(), outputChannels, this.tracks);
+        this.routing = new float[outputChannels * stream.getChannels()];
+        for (int out = 0, g = 0; out < outputChannels; out++) {
+            for (int in = 0; in < stream.getChannels(); in++, g++)
+                this.routing[g] = this.mixer.getGain(out, in);
+        }
+
+        this.trackGain = new float[this.tracks.length];
+        this.silentFrom = new long[this.tracks.length];
+        this.skipped = new boolean[this.tracks.length];
+        this.resuming = new boolean[this.tracks.length];
+        this.resumeRamp = new int[this.tracks.length];
+        this.idleFrames = (int) (outputRate * IDLE_SECONDS);
+        Arrays.fill(this.trackGain, 1.0F);
+        Arrays.fill(this.silentFrom, -1);
+        // a single track of a multi-track stream
+        if (track != -1 && stream.getChannels() > 2) {
+            for (int t = 0; t < this.tracks.length; t++) {
+                if (t != track)
+                    this.setTrackGain(t, 0.0F, 0);
+            }
+        }
+        this.decodedBase = stream instanceof InterleavedStream ? ((InterleavedStream) stream).getDecodedFrames() : 0;
+
+        int blockFrames = stream.getMaxBlockFrames();
+        this.decoded = new float[stream.getChannels()][blockFrames];
+        this.resampled = new float[stream.getChannels()][this.resampler.getMaxOutputFrames(blockFrames)];
+    }
+
+    /**
+     * Decodes the first frames of the stream on the calling thread, to be called before {@link #start()}.
+     * Streams that can stop within a block return exactly that chunk, so the first sound does not
+     * wait for a whole interleave block.
+     *
+     * @param frames The amount of stream frames to decode, at most one block
+     */
+    void preroll(int frames) throws Exception {
+        frames = Math.min(frames, this.decoded[0].length);
+        float[][] chunk = new float[this.stream.getChannels()][Math.min(frames, this.stream.getMaxBlockFrames())];
+        int done = 0;
+        while (done < frames && this.stream.hasMoreData()) {
+            int count = this.stream.decodePlanar(chunk);
+            if (count == 0)
+                break;
+            int end = this.offset + this.available;
+            this.available += this.resampler.process(chunk, 0, count, this.resampled, end, this.resampled[0].length - end);
+            this.decodedFrames += count;
+            done += count;
+        }
+    }
+
+    /**
+     * Starts decoding the stream on a background thread so the next blocks are ready when needed
+     */
+    void start() {
+        this.decoder = new AsyncDecoder(this.stream);
+        this.decoder.start();
+    }
+
+    /**
+     * @return The resampled frames that can be read without decoding
+     */
+    int getBufferedFrames() {
+        return available;
+    }
+
+    Stream getStream() {
+        return stream;
+    }
+
+    GainMixer getMixer() {
+        return mixer;
+    }
+
+    /**
+     * @return The loudness normalization gain of the stream, applied with the player's volume as
+     *         the mixer's master gain
+     */
+    float getNormalization() {
+        return normalization;
+    }
+
+    void setNormalization(float normalization) {
+        this.normalization = normalization;
+    }
+
+    TrackInfo[] getTracks() {
+        return tracks;
+    }
+
+    /**
+     * Fades a track, called by the playback thread. A track whose channels are not decoded is
+     * resumed first, its fade starts with the first block that contains it again.
+     *
+     * @param rampFrames Amount of output frames to reach the new gain in
+     */
+    void setTrackGain(int track, float gain, int rampFrames) {
+        this.trackGain[track] = gain;
+        if (this.skipped[track]) {
+            if (gain == 0)
+                return;
+            InterleavedStream stream = (InterleavedStream) this.stream;
+            for (int n = 0; n < this.tracks[track].getChannelCount(); n++)
+                stream.setChannelSkipped(this.tracks[track].getChannel(n), false);
+            this.skipped[track] = false;
+            this.resuming[track] = true;
+        }
+        if (this.resuming[track]) {
+            this.resumeRamp[track] = rampFrames;
+            return;
+        }
+        this.applyTrackGain(track, rampFrames);
+    }
+
+    float getTrackGain(int track) {
+        return trackGain[track];
+    }
+
+    /**
+     * @return If the track's channels are not decoded at the moment
+     */
+    boolean isTrackSkipped(int track) {
+        return skipped[track];
+    }
+
+    private void applyTrackGain(int track, int rampFrames) {
+        TrackInfo info = this.tracks[track];
+        int inputs = this.stream.getChannels();
+        float gain = this.trackGain[track];
+        for (int n = 0; n < info.getChannelCount(); n++) {
+            int in = info.getChannel(n);
+            for (int out = 0; out < this.mixer.getOutputChannels(); out++)
+                this.mixer.setGain(out, in, this.routing[out * inputs + in] * gain, rampFrames);
+        }
+        this.silentFrom[track] = gain == 0 ? this.outputFrames + rampFrames : -1;
+    }
+
+    /**
+     * Starts the fades of resumed tracks once their channels are decoded again and stops decoding
+     * tracks that were silent long enough. Called by the playback thread before every period.
+     */
+    void updateTracks() {
+        if (!(this.stream instanceof InterleavedStream) || !((InterleavedStream) this.stream).canSkipChannels())
+            return;
+        InterleavedStream stream = (InterleavedStream) this.stream;
+        for (int t = 0; t < this.tracks.length; t++) {
+            TrackInfo info = this.tracks[t];
+            if (this.resuming[t]) {
+                boolean decoded = true;
+                for (int n = 0; n < info.getChannelCount(); n++)
+                    decoded &= stream.getChannelResumeFrame(info.getChannel(n)) - this.decodedBase <= this.blockStart;
+                if (decoded) {
+                    this.resuming[t] = false;
+                    this.applyTrackGain(t, this.resumeRamp[t]);
+                }
+            } else if (!this.skipped[t] && this.silentFrom[t] >= 0 && this.outputFrames - this.silentFrom[t] >= this.idleFrames) {
+                // channels may be shared between tracks
+                for (int n = 0; n < info.getChannelCount(); n++) {
+                    if (!this.isChannelHeard(info.getChannel(n), t))
+                        stream.setChannelSkipped(info.getChannel(n), true);
+                }
+                this.skipped[t] = true;
+            }
+        }
+    }
+
+    private boolean isChannelHeard(int channel, int except) {
+        for (int t = 0; t < this.tracks.length; t++) {
+            if (t == except || this.skipped[t])
+                continue;
+            for (int n = 0; n < this.tracks[t].getChannelCount(); n++) {
+                if (this.tracks[t].getChannel(n) == channel)
+                    return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * Copies resampled frames into {@code dst}, decoding more blocks as needed
+     *
+     * @return The amount of frames copied, less than {@code frames} only at the end of the stream
+     */
+    int read(float[][] dst, int dstOffset, int frames) throws Exception {
+        int done = 0;
+        while (done < frames) {
+            if (this.available == 0 && !this.fill())
+                break;
+            int count = Math.min(this.available, frames - done);
+            for (int ch = 0; ch < this.resampled.length; ch++)
+                System.arraycopy(this.resampled[ch], this.offset, dst[ch], dstOffset + done, count);
+            this.offset += count;
+            this.available -= count;
+            done += count;
+        }
+        this.outputFrames += done;
+        return done;
+    }
+
+    private boolean fill() throws Exception {
+        while (this.decoder.hasMoreData()) {
+            int frames = this.decoder.decodePlanar(this.decoded);
+            if (frames == 0)
+                continue;
+            this.offset = 0;
+            this.available = this.resampler.process(this.decoded, 0, frames, this.resampled, 0, this.resampled[0].length);
+            this.blockStart = this.decodedFrames;
+            this.decodedFrames += frames;
+            if (this.available > 0)
+                return true;
+        }
+        return false;
+    }
+
+    /**
+     * @return The output frames left until the stream ends, or -1 if it loops
+     */
+    long getRemainingFrames() {
+        long remaining = this.decoder.getRemainingFrames();
+        if (remaining < 0)
+            return -1;
+        return this.available + remaining * this.resampler.getOutputRate() / this.resampler.getInputRate();
+    }
+
+    /**
+     * Stops decoding and leaves the stream open; waits for the decoder thread, so the stream is no
+     * longer used when this returns
+     */
+    void stop() {
+        if (this.decoder == null)
+            return;
+        this.decoder.stopDecoding();
+        boolean interrupted = false;
+        while (this.decoder.isAlive()) {
+            try {
+                this.decoder.join();
+            } catch (InterruptedException e) {
+                interrupted = true;
+            }
+        }
+        if (interrupted)
+            Thread.currentThread().interrupt();
+    }
+
+    /**
+     * Stops decoding, closing the stream if the deck owns it
+     */
+    void close() {
+        try {
+            if (this.owned)
+                this.decoder.close();
+            else
+                this.decoder.stopDecoding();
+        } catch (Exception e) {
+            e.printStackTrace();
+        }
+    }
+}
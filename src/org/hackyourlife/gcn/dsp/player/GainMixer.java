@@ -0,0 +1,320 @@
+package org.hackyourlife.gcn.dsp.player;
+
+import org.hackyourlife.gcn.dsp.PCM;
+import org.hackyourlife.gcn.dsp.TrackInfo;
+
+import java.util.Arrays;
+
+/**
+ * Applies a gain matrix (output channel x input channel) to planar float samples, mixing them
+ * down to the output layout and writing clamped 16 bit PCM in a single pass.
+ * Gain changes are ramped linearly over a given amount of frames so they do not click; every
+ * entry of the matrix and the master gain ramp independently, so one track can fade while
+ * another one is changed. Inputs whose gains are all zero are not read.
+ * The setters may be called from any thread, they take effect at the start of the next block.
+ */
+public class GainMixer {
+
+    private final int inputChannels;
+    private final int outputChannels;
+
+    // owned by the mixing thread
+    private final float[] gain;
+    private final float[] step;
+    private final float[] target;
+    private final int[] left;
+    private float masterGain = 1.0F;
+    private float masterStep = 0;
+    private float masterTarget = 1.0F;
+    private int masterLeft = 0;
+    private int rampFrames = 0;
+    private final float[] scaled;
+    private final int[] active;
+    private final int[] activeEnd;
+
+    // written by the setters, picked up by the mixing thread
+    private final float[] matrix;
+    private final int[] pendingRamp;
+    private final boolean[] dirty;
+    private float master = 1.0F;
+    private int pendingMasterRamp = 0;
+    private boolean masterDirty = false;
+    private volatile boolean changed = false;
+
+    /**
+     * @param inputChannels Amount of decoded channels
+     * @param outputChannels Amount of channels of the output line
+     */
+    public GainMixer(int inputChannels, int outputChannels) {
+        this.inputChannels = inputChannels;
+        this.outputChannels = outputChannels;
+        int size = inputChannels * outputChannels;
+        this.gain = new float[size];
+        this.step = new float[size];
+        this.target = new float[size];
+        this.left = new int[size];
+        this.scaled = new float[size];
+        this.active = new int[size];
+        this.activeEnd = new int[outputChannels];
+        this.matrix = new float[size];
+        this.pendingRamp = new int[size];
+        this.dirty = new boolean[size];
+    }
+
+    /**
+     * Creates a mixer that sums the tracks of a track table at their volume and pan. Mono tracks
+     * go to every output channel, the channels of other tracks alternate between left and right.
+     */
+    public static GainMixer createTracks(int inputChannels, int outputChannels, TrackInfo[] tracks) {
+        GainMixer mixer = new GainMixer(inputChannels, outputChannels);
+        for (TrackInfo track : tracks) {
+            float volume = (float) track.getVolume() / TrackInfo.VOLUME_MAX;
+            // linear balance, both sides at full level in the center
+            float[] balance = {1.0F, 1.0F};
+            if (outputChannels == 2) {
+                balance[0] = Math.min(1.0F, (float) (TrackInfo.VOLUME_MAX - track.getPan()) / (TrackInfo.VOLUME_MAX - TrackInfo.PAN_CENTER));
+                balance[1] = Math.min(1.0F, (float) track.getPan() / TrackInfo.PAN_CENTER);
+            }
+            for (int n = 0; n < track.getChannelCount(); n++) {
+                int in = track.getChannel(n);
+                for (int out = 0; out < outputChannels; out++) {
+                    boolean routed = track.getChannelCount() == 1 || outputChannels == 1 || (n & 1) == out;
+                    if (routed)
+                        mixer.matrix[out * inputChannels + in] += volume * balance[Math.min(out, 1)];
+                }
+            }
+        }
+        mixer.reset();
+        return mixer;
+    }
+
+    public int getInputChannels() {
+        return inputChannels;
+    }
+
+    public int getOutputChannels() {
+        return outputChannels;
+    }
+
+    /**
+     * Sets the gain of one input channel in one output channel
+     *
+     * @param rampFrames Amount of output frames to reach the new gain in
+     */
+    public synchronized void setGain(int outputChannel, int inputChannel, float gain, int rampFrames) {
+        int g = outputChannel * this.inputChannels + inputChannel;
+        this.matrix[g] = gain;
+        this.pendingRamp[g] = Math.max(rampFrames, 0);
+        this.dirty[g] = true;
+        this.changed = true;
+    }
+
+    /**
+     * @return The target gain of one input channel in one output channel, without the master gain
+     */
+    public synchronized float getGain(int outputChannel, int inputChannel) {
+        return this.matrix[outputChannel * this.inputChannels + inputChannel];
+    }
+
+    /**
+     * Sets the gain applied on top of the whole matrix
+     *
+     * @param gain Linear amplitude factor
+     * @param rampFrames Amount of output frames to reach the new gain in
+     */
+    public synchronized void setMasterGain(float gain, int rampFrames) {
+        this.master = gain;
+        this.pendingMasterRamp = Math.max(rampFrames, 0);
+        this.masterDirty = true;
+        this.changed = true;
+    }
+
+    public synchronized float getMasterGain() {
+        return this.master;
+    }
+
+    /**
+     * Jumps to the values of the setters, used by the factories
+     */
+    private void reset() {
+        Arrays.fill(this.dirty, true);
+        this.masterDirty = true;
+        this.changed = true;
+        this.update();
+    }
+
+    /**
+     * Starts ramps towards the latest values of the setters
+     */
+    private void update() {
+        if (!this.changed)
+            return;
+        synchronized (this) {
+            this.changed = false;
+            int ramp = this.rampFrames;
+            for (int g = 0; g < this.target.length; g++) {
+                if (!this.dirty[g])
+                    continue;
+                this.dirty[g] = false;
+                int frames = this.pendingRamp[g];
+                this.target[g] = this.matrix[g];
+                this.left[g] = frames;
+                if (frames == 0) {
+                    this.gain[g] = this.target[g];
+                    this.step[g] = 0;
+                } else {
+                    this.step[g] = (this.target[g] - this.gain[g]) / frames;
+                }
+                ramp = Math.max(ramp, frames);
+            }
+            if (this.masterDirty) {
+                this.masterDirty = false;
+                int frames = this.pendingMasterRamp;
+                this.masterTarget = this.master;
+                this.masterLeft = frames;
+                if (frames == 0) {
+                    this.masterGain = this.masterTarget;
+                    this.masterStep = 0;
+                } else {
+                    this.masterStep = (this.masterTarget - this.masterGain) / frames;
+                }
+                ramp = Math.max(ramp, frames);
+            }
+            this.rampFrames = ramp;
+        }
+    }
+
+    /**
+     * Advances the gains of every ramp by one frame
+     */
+    private void step() {
+        int[] left = this.left;
+        for (int g = 0; g < left.length; g++) {
+            if (left[g] > 0) {
+                this.gain[g] += this.step[g];
+                if (--left[g] == 0)
+                    this.gain[g] = this.target[g];
+            }
+        }
+        if (this.masterLeft > 0) {
+            this.masterGain += this.masterStep;
+            if (--this.masterLeft == 0)
+                this.masterGain = this.masterTarget;
+        }
+        this.rampFrames--;
+    }
+
+    /**
+     * Collects the non-zero gains with the master gain applied, grouped by output channel,
+     * for the part of a block after all ramps ended
+     */
+    private void collect() {
+        int n = 0;
+        for (int o = 0, g = 0; o < this.outputChannels; o++) {
+            for (int c = 0; c < this.inputChannels; c++, g++) {
+                float value = this.gain[g] * this.masterGain;
+                if (value != 0) {
+                    this.scaled[n] = value;
+                    this.active[n++] = c;
+                }
+            }
+            this.activeEnd[o] = n;
+        }
+    }
+
+    /**
+     * Mixes {@code frames} frames of the planar input into interleaved 16 bit PCM.
+     *
+     * @param bigEndian Byte order of the output samples
+     * @return The amount of bytes written to {@code out}
+     */
+    public int process(float[][] in, int inOffset, int frames, byte[] out, int outOffset, boolean bigEndian) {
+        this.update();
+
+        int inputs = this.inputChannels;
+        int outputs = this.outputChannels;
+        float[] gain = this.gain;
+        int p = outOffset;
+        int i = 0;
+
+        // frames inside a ramp advance the gains after every frame
+        int ramped = Math.min(this.rampFrames, frames);
+        for (; i < ramped; i++) {
+            float master = this.masterGain;
+            for (int o = 0, g = 0; o < outputs; o++, p += 2) {
+                float sum = 0;
+                for (int c = 0; c < inputs; c++, g++)
+                    sum += in[c][inOffset + i] * gain[g];
+                PCM.put16(out, p, PCM.clamp16(sum * master), bigEndian);
+            }
+            this.step();
+        }
+
+        // constant gain for the rest of the block, only over the inputs that are heard
+        this.collect();
+        float[] scaled = this.scaled;
+        int[] active = this.active;
+        int[] activeEnd = this.activeEnd;
+        for (; i < frames; i++) {
+            for (int o = 0, n = 0; o < outputs; o++, p += 2) {
+                float sum = 0;
+                for (int end = activeEnd[o]; n < end; n++)
+                    sum += in[active[n]][inOffset + i] * scaled[n];
+                PCM.put16(out, p, PCM.clamp16(sum), bigEndian);
+            }
+        }
+        return p - outOffset;
+    }
+
+    /**
+     * Same as {@link #process(float[][], int, int, byte[], int, boolean)} but adds the mixed samples
+     * to an interleaved float buffer, for summing several sources before {@link #toPcm16}.
+     *
+     * @return The amount of samples added to {@code out}
+     */
+    public int processAdd(float[][] in, int inOffset, int frames, float[] out, int outOffset) {
+        this.update();
+
+        int inputs = this.inputChannels;
+        int outputs = this.outputChannels;
+        float[] gain = this.gain;
+        int p = outOffset;
+        int i = 0;
+
+        int ramped = Math.min(this.rampFrames, frames);
+        for (; i < ramped; i++) {
+            float master = this.masterGain;
+            for (int o = 0, g = 0; o < outputs; o++, p++) {
+                float sum = 0;
+                for (int c = 0; c < inputs; c++, g++)
+                    sum += in[c][inOffset + i] * gain[g];
+                out[p] += sum * master;
+            }
+            this.step();
+        }
+
+        this.collect();
+        float[] scaled = this.scaled;
+        int[] active = this.active;
+        int[] activeEnd = this.activeEnd;
+        for (; i < frames; i++) {
+            for (int o = 0, n = 0; o < outputs; o++, p++) {
+                float sum = 0;
+                for (int end = activeEnd[o]; n < end; n++)
+                    sum += in[active[n]][inOffset + i] * scaled[n];
+                out[p] += sum;
+            }
+        }
+        return p - outOffset;
+    }
+
+    /**
+     * Clamps interleaved float samples to 16 bit PCM
+     *
+     * @return The amount of bytes written to {@code out}
+     */
+    public static int toPcm16(float[] in, int inOffset, int samples, byte[] out, int outOffset, boolean bigEndian) {
+        PCM.fromFloat16(in, inOffset, out, outOffset, samples, bigEndian);
+        return samples * 2;
+    }
+}
@@ -0,0 +1,109 @@
+package org.hackyourlife.gcn.dsp.player;
+
+import javax.sound.sampled.*;
+
+/**
+ * Plays through a {@link SourceDataLine} of the default mixer
+ */
+public class LineSink implements AudioSink {
+
+    private volatile SourceDataLine line;
+
+    /**
+     * Picks the rate to open the line at. Most mixers only advertise unspecified rates, in that case
+     * 48000 Hz (or 44100 Hz) is used when supported as that is what sound servers run at natively.
+     *
+     * @param channels Amount of output channels
+     * @param nativeRate Sample rate of the stream, used if no common device rate is supported
+     * @return The sample rate for the output line
+     */
+    @Override
+    public int getPreferredSampleRate(int channels, int nativeRate) {
+        int[] candidates = {48000, 44100};
+        for (Line.Info lineInfo : AudioSystem.getSourceLineInfo(new Line.Info(SourceDataLine.class))) {
+            if (!(lineInfo instanceof DataLine.Info))
+                continue;
+            for (AudioFormat format : ((DataLine.Info) lineInfo).getFormats()) {
+                float rate = format.getSampleRate();
+                if (rate != AudioSystem.NOT_SPECIFIED && format.getChannels() == channels && format.getSampleSizeInBits() == 16) {
+                    // the device reports fixed rates, use the first common one it has
+                    for (int candidate : candidates) {
+                        if (candidate == rate)
+                            return candidate;
+                    }
+                }
+            }
+        }
+
+        for (int candidate : candidates) {
+            AudioFormat format = new AudioFormat(candidate, 16, channels, true, true);
+            if (AudioSystem.isLineSupported(new DataLine.Info(SourceDataLine.class, format)))
+                return candidate;
+        }
+        return nativeRate;
+    }
+
+    @Override
+    public boolean supportsByteOrder(int sampleRate, int channels, boolean bigEndian) {
+        AudioFormat format = new AudioFormat(sampleRate, 16, channels, true, bigEndian);
+        return AudioSystem.isLineSupported(new DataLine.Info(SourceDataLine.class, format));
+    }
+
+    @Override
+    public void open(int sampleRate, int channels, boolean bigEndian, int bufferBytes) throws Exception {
+        AudioFormat format = new AudioFormat(
+                AudioFormat.Encoding.PCM_SIGNED,	// encoding
+                sampleRate,			    // sample rate
+                16,					// bit/sample
+                channels,				            // channels
+                2 * channels,
+                sampleRate,
+                bigEndian
+        );
+
+        DataLine.Info info = new DataLine.Info(SourceDataLine.class, format);
+        if(!AudioSystem.isLineSupported(info)) {
+            throw new Exception("Line matching " + info + " not supported");
+        }
+
+        if (this.line != null)
+            this.line.close();
+        this.line = (SourceDataLine) AudioSystem.getLine(info);
+        this.line.open(format, bufferBytes);
+    }
+
+    @Override
+    public int write(byte[] data, int off, int len) {
+        return this.line.write(data, off, len);
+    }
+
+    @Override
+    public long getFramePosition() {
+        SourceDataLine line = this.line;
+        return line != null ? line.getLongFramePosition() : -1;
+    }
+
+    @Override
+    public void start() {
+        this.line.start();
+    }
+
+    @Override
+    public void stop() {
+        if (this.line != null)
+            this.line.stop();
+    }
+
+    @Override
+    public void close() {
+        if (this.line != null)
+            this.line.close();
+    }
+
+    /**
+     * @return The line, or {@code null} if the sink was not opened yet
+     */
+    public SourceDataLine getLine() {
+        return line;
+    }
+}
@@ -0,0 +1,56 @@
+package org.hackyourlife.gcn.dsp.player;
+
+/**
+ * Discards everything written to it as fast as it is written, for benchmarks and tests of the
+ * playback path without a sound device
+ */
+public class NullSink implements AudioSink {
+
+    private volatile long bytesWritten = 0;
+    private volatile int frameSize = 1;
+    private int sampleRate;
+
+    @Override
+    public void open(int sampleRate, int channels, boolean bigEndian, int bufferBytes) {
+        this.sampleRate = sampleRate;
+        this.frameSize = 2 * channels;
+        this.bytesWritten = 0;
+    }
+
+    @Override
+    public int write(byte[] data, int off, int len) {
+        this.bytesWritten += len;
+        return len;
+    }
+
+    /**
+     * @return The frames written, everything written counts as played right away
+     */
+    @Override
+    public long getFramePosition() {
+        return this.getFramesWritten();
+    }
+
+    @Override
+    public void start() {
+    }
+
+    @Override
+    public void stop() {
+    }
+
+    @Override
+    public void close() {
+    }
+
+    /**
+     * @return The frames written since the sink was opened
+     */
+    public long getFramesWritten() {
+        return bytesWritten / frameSize;
+    }
+
+    public int getSampleRate() {
+        return sampleRate;
+    }
+}
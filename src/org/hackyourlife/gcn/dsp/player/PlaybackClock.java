@@ -0,0 +1,93 @@
+package org.hackyourlife.gcn.dsp.player;
+
+import java.lang.invoke.VarHandle;
+
+/**
+ * Maps output frames to sample positions of the streams that produced them. The playback thread
+ * starts a segment whenever another stream starts playing; readers look up the segment of the
+ * frame the device is playing. Segments are published through a sequence lock, so readers never
+ * block and never make the playback thread wait.
+ */
+class PlaybackClock {
+
+    /** Segments kept, enough for every stream switch that can be buffered in the line */
+    private static final int SEGMENTS = 8;
+
+    private final long[] outputStart = new long[SEGMENTS];
+    private final long[] inputRate = new long[SEGMENTS];
+    private final long[] outputRate = new long[SEGMENTS];
+    private final long[] loopStart = new long[SEGMENTS];
+    private final long[] loopEnd = new long[SEGMENTS];
+    private int count = 0;
+
+    /** odd while the playback thread is writing */
+    private volatile long sequence = 0;
+
+    /**
+     * Starts a segment, only called by the playback thread
+     *
+     * @param frame The output frame the stream starts at
+     * @param loopStart The first sample of the loop, or -1 if the stream does not loop
+     */
+    void begin(long frame, long inputRate, long outputRate, long loopStart, long loopEnd) {
+        long sequence = this.sequence;
+        this.sequence = sequence + 1;
+        VarHandle.storeStoreFence();
+
+        int slot = this.count % SEGMENTS;
+        this.outputStart[slot] = frame;
+        this.inputRate[slot] = inputRate;
+        this.outputRate[slot] = outputRate;
+        this.loopStart[slot] = loopStart;
+        this.loopEnd[slot] = loopEnd;
+        this.count++;
+
+        this.sequence = sequence + 2;
+    }
+
+    /**
+     * Forgets all segments, only called by the playback thread or while it is not running
+     */
+    void reset() {
+        long sequence = this.sequence;
+        this.sequence = sequence + 1;
+        VarHandle.storeStoreFence();
+        this.count = 0;
+        this.sequence = sequence + 2;
+    }
+
+    /**
+     * @param frame An output frame, usually the one the device is playing
+     * @return The sample of its stream, with loops wrapped, or -1 before the first segment
+     */
+    long getPosition(long frame) {
+        while (true) {
+            long sequence = this.sequence;
+            if ((sequence & 1) != 0) {
+                Thread.onSpinWait();
+                continue;
+            }
+
+            long position = -1;
+            int count = this.count;
+            // newest segment that started at or before the frame
+            for (int i = count - 1; i >= Math.max(count - SEGMENTS, 0); i--) {
+                int slot = i % SEGMENTS;
+                long start = this.outputStart[slot];
+                if (start > frame)
+                    continue;
+                long elapsed = (frame - start) * this.inputRate[slot] / Math.max(this.outputRate[slot], 1);
+                long loopStart = this.loopStart[slot];
+                long loopEnd = this.loopEnd[slot];
+                if (loopStart >= 0 && loopEnd > loopStart && elapsed >= loopEnd)
+                    elapsed = loopStart + (elapsed - loopStart) % (loopEnd - loopStart);
+                position = elapsed;
+                break;
+            }
+
+            VarHandle.loadLoadFence();
+            if (this.sequence == sequence)
+                return position;
+        }
+    }
+}
@@ -0,0 +1,253 @@
+package org.hackyourlife.gcn.dsp.player;
+
+import java.util.Arrays;
+
+/**
+ * Windowed-sinc polyphase sample rate converter working on planar float blocks.
+ * The filter phases are computed once in the constructor, {@link #process} does not allocate
+ * unless it is given a larger input block than ever before.
+ */
+public class Resampler {
+
+    /**
+     * Filter quality, trading taps per output sample against stop band attenuation
+     */
+    public enum Quality {
+        LOW(8, 5.0, 0.85),
+        MEDIUM(16, 7.0, 0.90),
+        HIGH(32, 9.0, 0.94);
+
+        private final int taps;
+        private final double beta;
+        private final double rolloff;
+
+        Quality(int taps, double beta, double rolloff) {
+            this.taps = taps;
+            this.beta = beta;
+            this.rolloff = rolloff;
+        }
+
+        public int getTaps() {
+            return taps;
+        }
+    }
+
+    /** Upper bound of precomputed phases, ratios needing more share the nearest phase */
+    private static final int MAX_PHASES = 4096;
+
+    private final int channels;
+    private final int inputRate;
+    private final int outputRate;
+    private final int up;
+    private final int down;
+    private final int taps;
+    private final int phases;
+    private final float[] table;
+
+    private float[][] buffer;
+    private int fill;
+    private int position;
+    private int fraction;
+    private int skip;
+
+    /**
+     * @param channels Amount of channels processed together
+     * @param inputRate Sample rate of the input blocks
+     * @param outputRate Sample rate of the produced blocks
+     * @param quality Filter quality
+     */
+    public Resampler(int channels, int inputRate, int outputRate, Quality quality) {
+        if (channels < 1 || inputRate <= 0 || outputRate <= 0)
+            throw new IllegalArgumentException("Invalid resampler configuration");
+
+        int gcd = gcd(inputRate, outputRate);
+        this.channels = channels;
+        this.inputRate = inputRate;
+        this.outputRate = outputRate;
+        this.up = outputRate / gcd;
+        this.down = inputRate / gcd;
+        this.taps = quality.taps;
+        this.phases = Math.min(this.up, MAX_PHASES);
+        this.table = isPassthrough() ? new float[0] : createTable(quality);
+        this.buffer = new float[channels][this.taps + 4096];
+        this.reset();
+    }
+
+    public Resampler(int channels, int inputRate, int outputRate) {
+        this(channels, inputRate, outputRate, Quality.MEDIUM);
+    }
+
+    private static int gcd(int a, int b) {
+        while (b != 0) {
+            int t = a % b;
+            a = b;
+            b = t;
+        }
+        return a;
+    }
+
+    private static double besselI0(double x) {
+        double sum = 1.0;
+        double term = 1.0;
+        for (int k = 1; k < 32; k++) {
+            term *= (x / (2 * k)) * (x / (2 * k));
+            sum += term;
+            if (term < sum * 1e-12)
+                break;
+        }
+        return sum;
+    }
+
+    private float[] createTable(Quality quality) {
+        float[] table = new float[this.phases * this.taps];
+        // cutoff relative to the input rate, lowered below the output nyquist when downsampling
+        double cutoff = 0.5 * Math.min(1.0, (double) this.up / this.down) * quality.rolloff;
+        double half = this.taps / 2.0;
+        double center = this.taps / 2 - 1;
+        double norm = besselI0(quality.beta);
+
+        for (int p = 0; p < this.phases; p++) {
+            double offset = (double) p / this.phases;
+            double sum = 0;
+            for (int k = 0; k < this.taps; k++) {
+                double t = k - center - offset;
+                double x = 2.0 * cutoff * t;
+                double sinc = x == 0 ? 1.0 : Math.sin(Math.PI * x) / (Math.PI * x);
+                double w = t / half;
+                double window = Math.abs(w) >= 1.0 ? 0.0 : besselI0(quality.beta * Math.sqrt(1.0 - w * w)) / norm;
+                double value = 2.0 * cutoff * sinc * window;
+                table[p * this.taps + k] = (float) value;
+                sum += value;
+            }
+            // unity gain at DC for every phase
+            for (int k = 0; k < this.taps; k++)
+                table[p * this.taps + k] /= (float) sum;
+        }
+        return table;
+    }
+
+    /**
+     * @return {@code true} if input and output rate are equal and samples are copied unchanged
+     */
+    public boolean isPassthrough() {
+        return this.up == this.down;
+    }
+
+    public int getChannels() {
+        return channels;
+    }
+
+    public int getInputRate() {
+        return inputRate;
+    }
+
+    public int getOutputRate() {
+        return outputRate;
+    }
+
+    /**
+     * @param inputFrames Size of the next input block
+     * @return The most frames one call to {@link #process} can produce for that block
+     */
+    public int getMaxOutputFrames(int inputFrames) {
+        if (this.isPassthrough())
+            return this.fill - this.position + inputFrames;
+        long pending = this.fill - this.position + (long) Math.max(inputFrames - this.skip, 0);
+        return (int) ((pending * this.up + this.down - 1) / this.down) + 1;
+    }
+
+    /**
+     * Clears the filter history, e.g. when the input jumps to another position
+     */
+    public void reset() {
+        for (float[] channel : this.buffer)
+            Arrays.fill(channel, 0.0F);
+        // prime the history so the first output sample lines up with the first input sample
+        this.fill = this.isPassthrough() ? 0 : this.taps / 2 - 1;
+        this.position = 0;
+        this.fraction = 0;
+        this.skip = 0;
+    }
+
+    /**
+     * Converts a block of input frames. All input is consumed; output that does not fit into
+     * {@code outCapacity} stays pending and is returned by the next call.
+     *
+     * @return The amount of frames written to {@code out}
+     */
+    public int process(float[][] in, int inOffset, int inFrames, float[][] out, int outOffset, int outCapacity) {
+        if (this.isPassthrough()) {
+            // frames pending from the last call first, then the input; what does not fit is kept
+            int written = Math.min(this.fill - this.position, outCapacity);
+            for (int ch = 0; ch < this.channels; ch++)
+                System.arraycopy(this.buffer[ch], this.position, out[ch], outOffset, written);
+            this.position += written;
+            int frames = Math.min(inFrames, outCapacity - written);
+            for (int ch = 0; ch < this.channels; ch++)
+                System.arraycopy(in[ch], inOffset, out[ch], outOffset + written, frames);
+            this.append(in, inOffset + frames, inFrames - frames);
+            return written + frames;
+        }
+
+        // input the last block already stepped over when downsampling
+        if (this.skip > 0) {
+            int skipped = Math.min(this.skip, inFrames);
+            this.skip -= skipped;
+            inOffset += skipped;
+            inFrames -= skipped;
+        }
+
+        this.append(in, inOffset, inFrames);
+
+        int written = 0;
+        int pos = this.position;
+        int frac = this.fraction;
+        int last = this.fill - this.taps;
+        while (pos <= last && written < outCapacity) {
+            int phase = this.phases == this.up ? frac : (int) ((long) frac * this.phases / this.up);
+            int coef = phase * this.taps;
+            for (int ch = 0; ch < this.channels; ch++) {
+                float[] x = this.buffer[ch];
+                float sum = 0.0F;
+                for (int k = 0; k < this.taps; k++)
+                    sum += x[pos + k] * this.table[coef + k];
+                out[ch][outOffset + written] = sum;
+            }
+            written++;
+
+            frac += this.down;
+            pos += frac / this.up;
+            frac %= this.up;
+        }
+        if (pos > this.fill) {
+            this.skip = pos - this.fill;
+            pos = this.fill;
+        }
+        this.position = pos;
+        this.fraction = frac;
+        return written;
+    }
+
+    /**
+     * Drops the consumed part of the buffer and appends input to it
+     */
+    private void append(float[][] in, int inOffset, int inFrames) {
+        int keep = this.fill - this.position;
+        if (inFrames <= 0 && this.position == 0)
+            return;
+        if (keep + inFrames > this.buffer[0].length) {
+            for (int ch = 0; ch < this.channels; ch++) {
+                float[] grown = new float[keep + inFrames + this.taps];
+                System.arraycopy(this.buffer[ch], this.position, grown, 0, keep);
+                this.buffer[ch] = grown;
+            }
+        } else if (this.position > 0) {
+            for (int ch = 0; ch < this.channels; ch++)
+                System.arraycopy(this.buffer[ch], this.position, this.buffer[ch], 0, keep);
+        }
+        for (int ch = 0; ch < this.channels; ch++)
+            System.arraycopy(in[ch], inOffset, this.buffer[ch], keep, inFrames);
+        this.fill = keep + inFrames;
+        this.position = 0;
+    }
+}
@@ -0,0 +1,456 @@
+package org.hackyourlife.gcn.dsp.player;
+
+import org.hackyourlife.gcn.dsp.PCM;
+import org.hackyourlife.gcn.dsp.SoundBank;
+
+import java.util.Arrays;
+
+/**
+ * Plays short sounds of a {@link SoundBank} on a fixed amount of voices that are mixed into one
+ * line, which stays open while the pool is. Everything is allocated up front, so triggering a
+ * sound does not allocate and only scans the voices; the mixing thread picks it up at the start
+ * of its next period, which is kept short ({@link #setPeriodFrames(int)}).
+ *
+ * <p>When no voice is free the pool steals one: the voice with the lowest priority, the oldest of
+ * those if several have the same. A sound is not played if every voice has a higher priority.
+ * Sounds can be limited to a number of voices; a sound over its limit restarts its oldest voice.
+ * Stolen, restarted and stopped voices fade out over a few milliseconds first so they do not
+ * click.</p>
+ */
+public class VoicePool {
+
+    /** Default mixing period, about 5 ms at 48 kHz */
+    private static final int DEFAULT_PERIOD_FRAMES = 256;
+    /** Periods the line buffers, the output latency on top of the trigger latency */
+    private static final int BUFFERED_PERIODS = 2;
+    /** Time a voice fades out in before it is stopped or plays another sound */
+    private static final float FADE_SECONDS = 0.004F;
+    private static final int FRACTION_BITS = 16;
+    private static final int ONE = 1 << FRACTION_BITS;
+
+    private final SoundBank bank;
+    private final Voice[] voices;
+    private final int[] polyphony;
+    private final int[] playing;
+    private long triggers = 0;
+
+    private AudioSink sink = new LineSink();
+    private int periodFrames = DEFAULT_PERIOD_FRAMES;
+    private float outputSampleRate = 0;
+    private int lineRate;
+    private boolean lineBigEndian;
+    private volatile boolean running = false;
+    private Thread thread;
+
+    /**
+     * @param bank The sounds to play
+     * @param voices Amount of sounds that can play at the same time
+     */
+    public VoicePool(SoundBank bank, int voices) {
+        if (voices < 1)
+            throw new IllegalArgumentException("At least one voice is needed");
+        if (bank.size() == 0)
+            throw new IllegalArgumentException("The bank has no sounds");
+        this.bank = bank;
+        this.voices = new Voice[voices];
+        for (int i = 0; i < voices; i++)
+            this.voices[i] = new Voice(bank);
+        this.polyphony = new int[bank.size()];
+        this.playing = new int[bank.size()];
+        Arrays.fill(this.polyphony, voices);
+    }
+
+    /**
+     * Replaces the sound device output, takes effect with the next {@link #open()}
+     */
+    public void setAudioSink(AudioSink sink) {
+        if (sink == null)
+            throw new NullPointerException("sink");
+        this.sink = sink;
+    }
+
+    /**
+     * @param sampleRate The output sample rate in Hz, or 0 to use the device's preferred rate.
+     *                   Takes effect with the next {@link #open()}
+     */
+    public void setOutputSampleRate(float sampleRate) {
+        this.outputSampleRate = sampleRate;
+    }
+
+    /**
+     * @param frames Frames mixed per period; triggers are picked up once per period. Takes effect
+     *               with the next {@link #open()}
+     */
+    public void setPeriodFrames(int frames) {
+        this.periodFrames = Math.max(16, frames);
+    }
+
+    /**
+     * Limits how many voices a sound may use at the same time
+     */
+    public synchronized void setPolyphony(int clip, int voices) {
+        int index = this.index(clip);
+        this.polyphony[index] = Math.max(1, voices);
+    }
+
+    /**
+     * Opens the line and starts mixing; the line plays silence while no sound is playing
+     */
+    public synchronized void open() throws Exception {
+        if (this.running)
+            return;
+        this.lineRate = this.outputSampleRate > 0 ? (int) this.outputSampleRate : this.sink.getPreferredSampleRate(2, 48000);
+        this.lineBigEndian = PCM.NATIVE_BIG_ENDIAN;
+        if (!this.sink.supportsByteOrder(this.lineRate, 2, this.lineBigEndian))
+            this.lineBigEndian = !this.lineBigEndian;
+        this.sink.open(this.lineRate, 2, this.lineBigEndian, this.periodFrames * 4 * BUFFERED_PERIODS);
+        this.sink.start();
+
+        this.running = true;
+        this.thread = new Thread(this::mix, "voice-pool");
+        this.thread.setDaemon(true);
+        this.thread.setPriority(Thread.MAX_PRIORITY);
+        this.thread.start();
+    }
+
+    /**
+     * Stops mixing and closes the line
+     */
+    public void close() {
+        this.running = false;
+        Thread thread = this.thread;
+        if (thread != null) {
+            try {
+                thread.join();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+        }
+        this.sink.stop();
+        this.sink.close();
+    }
+
+    /**
+     * @return The output sample rate, valid once the pool is open
+     */
+    public int getSampleRate() {
+        return lineRate;
+    }
+
+    /**
+     * Plays a sound with the default priority 0
+     *
+     * @see #play(int, float, float, int)
+     */
+    public int play(int clip, float gain, float pan) {
+        return this.play(clip, gain, pan, 0);
+    }
+
+    /**
+     * Triggers a sound, it starts with the next mixing period
+     *
+     * @param clip Id of the sound in the bank
+     * @param gain Linear amplitude factor
+     * @param pan -1 for left, 0 for center, 1 for right
+     * @param priority Voices with a lower priority are stolen first
+     * @return The voice playing the sound, or -1 if every voice plays something more important
+     */
+    public synchronized int play(int clip, float gain, float pan, int priority) {
+        int index = this.index(clip);
+        Voice voice = null;
+        if (this.playing[index] >= this.polyphony[index]) {
+            // over the limit of the sound, restart its oldest voice
+            for (Voice candidate : this.voices) {
+                if (candidate.busy && candidate.clip == index && (voice == null || candidate.trigger < voice.trigger))
+                    voice = candidate;
+            }
+        } else {
+            for (Voice candidate : this.voices) {
+                if (!candidate.busy) {
+                    voice = candidate;
+                    break;
+                }
+                // lowest priority first, then the oldest
+                if (candidate.priority <= priority && (voice == null || candidate.priority < voice.priority
+                        || (candidate.priority == voice.priority && candidate.trigger < voice.trigger)))
+                    voice = candidate;
+            }
+        }
+        if (voice == null)
+            return -1;
+
+        if (voice.busy)
+            this.playing[voice.clip]--;
+        voice.busy = true;
+        voice.clip = index;
+        voice.priority = priority;
+        voice.trigger = this.triggers++;
+        this.playing[index]++;
+
+        pan = Math.max(-1.0F, Math.min(1.0F, pan));
+        if (this.bank.getChannels(clip) == 1) {
+            // equal-power pan of mono sounds
+            double angle = (pan + 1) * Math.PI / 4;
+            voice.pendingLeft = (float) (gain * Math.cos(angle));
+            voice.pendingRight = (float) (gain * Math.sin(angle));
+        } else {
+            voice.pendingLeft = gain * Math.min(1.0F, 1.0F - pan);
+            voice.pendingRight = gain * Math.min(1.0F, 1.0F + pan);
+        }
+        voice.pendingClip = clip;
+        voice.pendingStop = false;
+        return voice.index(this.voices);
+    }
+
+    /**
+     * Stops a voice returned by {@link #play}, also if it plays another sound by now
+     */
+    public synchronized void stop(int voice) {
+        Voice v = this.voices[voice];
+        if (!v.busy)
+            return;
+        v.busy = false;
+        v.pendingClip = -1;
+        v.pendingStop = true;
+        this.playing[v.clip]--;
+    }
+
+    /**
+     * Stops all voices
+     */
+    public synchronized void stopAll() {
+        for (int i = 0; i < this.voices.length; i++)
+            this.stop(i);
+    }
+
+    /**
+     * @return The amount of voices playing or about to play
+     */
+    public synchronized int getActiveVoices() {
+        int active = 0;
+        for (Voice voice : this.voices) {
+            if (voice.busy)
+                active++;
+        }
+        return active;
+    }
+
+    private int index(int clip) {
+        int index = this.bank.indexOf(clip);
+        if (index < 0)
+            throw new IllegalArgumentException("unknown sound " + clip);
+        return index;
+    }
+
+    /**
+     * The mixing thread: takes over triggers, mixes a period and writes it, which blocks while the
+     * line is full
+     */
+    private void mix() {
+        int frames = this.periodFrames;
+        float[] accumulator = new float[frames * 2];
+        byte[] out = new byte[frames * 4];
+        while (this.running) {
+            synchronized (this) {
+                for (Voice voice : this.voices) {
+                    if (voice.pendingStop) {
+                        voice.pendingStop = false;
+                        voice.stop(this.lineRate);
+                    }
+                    if (voice.pendingClip >= 0) {
+                        voice.play(voice.pendingClip, voice.pendingLeft, voice.pendingRight, this.lineRate);
+                        voice.pendingClip = -1;
+                    }
+                    if (voice.finished) {
+                        voice.finished = false;
+                        if (voice.busy && !voice.active) {
+                            voice.busy = false;
+                            this.playing[voice.clip]--;
+                        }
+                    }
+                }
+            }
+
+            Arrays.fill(accumulator, 0.0F);
+            for (Voice voice : this.voices) {
+                if (voice.active)
+                    voice.mix(accumulator, frames);
+            }
+            GainMixer.toPcm16(accumulator, 0, frames * 2, out, 0, this.lineBigEndian);
+            this.sink.write(out, 0, out.length);
+        }
+    }
+
+    /**
+     * One voice: a rewindable playback of the bank, linearly interpolated to the line rate
+     */
+    private static class Voice {
+        private final SoundBank.Voice stream;
+        private final short[][] pcm;
+
+        // allocation state, guarded by the pool
+        private boolean busy = false;
+        private int clip;
+        private int priority;
+        private long trigger;
+        private int pendingClip = -1;
+        private boolean pendingStop = false;
+        private float pendingLeft;
+        private float pendingRight;
+        private boolean finished = false;
+
+        // playback state, owned by the mixing thread
+        private boolean active = false;
+        private int channels;
+        private float left;
+        private float right;
+        private int step;
+        private int fraction;
+        private int offset;
+        private int available;
+        private boolean ended;
+        private int tail;
+        private float previousLeft, previousRight, nextLeft, nextRight;
+        private int lineRate;
+
+        // fade out before the voice stops or plays the queued sound, 0 while not fading
+        private int fade = 0;
+        private int fadeFrames;
+        private int queuedClip = -1;
+        private float queuedLeft, queuedRight;
+
+        private Voice(SoundBank bank) {
+            this.stream = bank.open(bank.getIds()[0]);
+            this.pcm = new short[bank.getMaxChannels()][SoundBank.VOICE_BLOCK_FRAMES];
+        }
+
+        private int index(Voice[] voices) {
+            for (int i = 0; i < voices.length; i++) {
+                if (voices[i] == this)
+                    return i;
+            }
+            return -1;
+        }
+
+        /**
+         * Plays a sound, after fading out the one playing
+         */
+        private void play(int clip, float left, float right, int lineRate) {
+            if (!this.active) {
+                this.start(clip, left, right, lineRate);
+                return;
+            }
+            this.queuedClip = clip;
+            this.queuedLeft = left;
+            this.queuedRight = right;
+            this.fadeOut(lineRate);
+        }
+
+        /**
+         * Fades out the sound playing and stops, a queued sound is dropped
+         */
+        private void stop(int lineRate) {
+            this.queuedClip = -1;
+            if (this.active)
+                this.fadeOut(lineRate);
+        }
+
+        private void fadeOut(int lineRate) {
+            // a fade already running goes on from where it is
+            if (this.fade > 0)
+                return;
+            this.fadeFrames = Math.max(1, Math.round(lineRate * FADE_SECONDS));
+            this.fade = this.fadeFrames;
+        }
+
+        /**
+         * Called when the sound or its fade ended; starts the queued sound if there is one
+         *
+         * @return If the voice still plays
+         */
+        private boolean next() {
+            if (this.queuedClip >= 0) {
+                int clip = this.queuedClip;
+                this.queuedClip = -1;
+                this.start(clip, this.queuedLeft, this.queuedRight, this.lineRate);
+                return true;
+            }
+            this.fade = 0;
+            this.active = false;
+            this.finished = true;
+            return false;
+        }
+
+        private void start(int clip, float left, float right, int lineRate) {
+            this.stream.setSound(clip);
+            this.lineRate = lineRate;
+            this.channels = this.stream.getChannels();
+            this.left = left;
+            this.right = right;
+            this.step = (int) ((this.stream.getSampleRate() << FRACTION_BITS) / lineRate);
+            this.fraction = 0;
+            this.offset = 0;
+            this.available = 0;
+            this.ended = false;
+            this.tail = 0;
+            this.previousLeft = this.previousRight = 0;
+            this.nextLeft = this.nextRight = 0;
+            this.fade = 0;
+            this.active = true;
+            // prime the interpolation with the first sample
+            this.advance();
+            this.advance();
+        }
+
+        /**
+         * Moves the interpolation window on by one source frame
+         */
+        private void advance() {
+            this.previousLeft = this.nextLeft;
+            this.previousRight = this.nextRight;
+            if (this.available == 0 && !this.ended) {
+                try {
+                    this.available = this.stream.hasMoreData() ? this.stream.decodePlanar(this.pcm) : 0;
+                } catch (Exception e) {
+                    this.available = 0;
+                }
+                this.offset = 0;
+                this.ended = this.available == 0;
+            }
+            if (this.ended) {
+                this.nextLeft = this.nextRight = 0;
+                this.tail++;
+                return;
+            }
+            this.nextLeft = this.pcm[0][this.offset] * (1.0F / 32768.0F);
+            this.nextRight = this.channels > 1 ? this.pcm[1][this.offset] * (1.0F / 32768.0F) : this.nextLeft;
+            this.offset++;
+            this.available--;
+        }
+
+        private void mix(float[] out, int frames) {
+            for (int i = 0, p = 0; i < frames; i++, p += 2) {
+                float left = this.left;
+                float right = this.right;
+                if (this.fade > 0) {
+                    float gain = this.fade / (float) this.fadeFrames;
+                    left *= gain;
+                    right *= gain;
+                }
+                float t = this.fraction * (1.0F / ONE);
+                out[p] += (this.previousLeft + (this.nextLeft - this.previousLeft) * t) * left;
+                out[p + 1] += (this.previousRight + (this.nextRight - this.previousRight) * t) * right;
+                this.fraction += this.step;
+                while (this.fraction >= ONE) {
+                    this.fraction -= ONE;
+                    this.advance();
+                }
+                // faded out, or both samples of the window are past the end
+                if ((this.fade > 0 && --this.fade == 0) || this.tail >= 2) {
+                    if (!this.next())
+                        return;
+                }
+            }
+        }
+    }
+}